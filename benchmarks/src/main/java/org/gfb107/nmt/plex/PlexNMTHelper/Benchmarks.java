@@ -0,0 +1,16 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like JMH's own main, taking the same arguments, but always with the GC profiler, so every result comes with
+ * its allocation rate (gc.alloc.rate) and bytes allocated per operation (gc.alloc.rate.norm) next to the throughput.
+ */
+public class Benchmarks {
+	public static void main( String[] args ) throws Exception {
+		new Runner( new OptionsBuilder().parent( new CommandLineOptions( args ) ).addProfiler( GCProfiler.class ).build() ).run();
+	}
+}
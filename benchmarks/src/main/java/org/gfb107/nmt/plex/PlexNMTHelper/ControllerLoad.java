@@ -0,0 +1,411 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+import org.simpleframework.http.Status;
+import org.simpleframework.http.core.Container;
+import org.simpleframework.http.core.ContainerServer;
+import org.simpleframework.transport.connect.Connection;
+import org.simpleframework.transport.connect.SocketConnection;
+
+/**
+ * Drives a helper with many controllers at once. Each controller subscribes to timelines with its own stand-in endpoint, then polls,
+ * sends playback commands and presses navigation keys in the configured mix until the time is up. The latency of every request is
+ * recorded per kind, and the endpoints record timeline delivery lag: the time from a controller sending pause, play or seekTo to each
+ * subscriber receiving a timeline showing it.
+ * <p>
+ * By default everything runs in this process: a helper, a {@link SimulatedNmt} and a stand-in PLEX server serving a play queue, which
+ * is started before the controllers begin. Given helper=host:port, an already running helper is driven instead, and given
+ * containerKey too, that play queue is started on it first. Settings are name=value arguments:
+ * <ul>
+ * <li>controllers: how many controllers (20)</li>
+ * <li>duration: seconds to run (60)</li>
+ * <li>mix: relative weights of poll, playback, navigation and subscribe requests (poll=70,playback=10,navigation=15,subscribe=5)</li>
+ * <li>thinkTime: average milliseconds a controller waits between requests (1000)</li>
+ * <li>address, port: where the endpoints listen, one port per controller from port on (127.0.0.1, 19000)</li>
+ * <li>latency, jitter, seekTime: for the simulated NMT, see {@link NmtSimulator}</li>
+ * </ul>
+ */
+public class ControllerLoad implements Container {
+	private static final Charset utf8 = Charset.forName( "UTF-8" );
+
+	private static final String[] playbackCommands = { "pause", "play", "seekTo", "stepForward", "stepBack" };
+	private static final String[] navigationKeys = { "moveUp", "moveDown", "moveLeft", "moveRight", "select", "back" };
+
+	// The stand-in PLEX server's videos all last an hour and a half
+	private static final int videoLength = 5400000;
+
+	private Properties properties;
+	private String address;
+	private int plexPort;
+	private String helper;
+	private CloseableHttpClient client;
+
+	private Map< String, Histogram > latencies = new LinkedHashMap< String, Histogram >();
+	private Map< String, AtomicLong > errors = new ConcurrentHashMap< String, AtomicLong >();
+	private Histogram lag = new Histogram();
+	private AtomicLong posts = new AtomicLong();
+	private AtomicLong expectations = new AtomicLong();
+	private AtomicLong delivered = new AtomicLong();
+
+	// The last pause, play or seek sent, which the endpoints wait to see in a timeline
+	private AtomicReference< Expectation > expected = new AtomicReference< Expectation >();
+	private AtomicBoolean paused = new AtomicBoolean();
+
+	private Map< Integer, Endpoint > endpoints = new ConcurrentHashMap< Integer, Endpoint >();
+
+	private ControllerLoad( Properties properties ) {
+		this.properties = properties;
+		for ( String kind : new String[] { "subscribe", "poll", "playback", "navigation" } ) {
+			latencies.put( kind, new Histogram() );
+			errors.put( kind, new AtomicLong() );
+		}
+	}
+
+	public static void main( String[] args ) throws Exception {
+		Properties properties = new Properties();
+		for ( String arg : args ) {
+			int equals = arg.indexOf( '=' );
+			if ( equals < 0 ) {
+				System.err.println( "Expected name=value, got " + arg );
+				System.exit( 1 );
+			}
+			properties.setProperty( arg.substring( 0, equals ), arg.substring( equals + 1 ) );
+		}
+		new ControllerLoad( properties ).run();
+		System.exit( 0 );
+	}
+
+	private void run() throws Exception {
+		int controllers = getInt( "controllers", 20 );
+		int duration = getInt( "duration", 60 );
+		address = properties.getProperty( "address", "127.0.0.1" );
+		int port = getInt( "port", 19000 );
+		plexPort = port + controllers;
+
+		client = new HttpTransport( "load", controllers * 2 + 10, controllers * 2 + 10, 5000, 30000 ).getClient();
+
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool( 4 );
+		Connection connection = new SocketConnection( new ContainerServer( this, 4 ) );
+		InetAddress listenAddress = InetAddress.getByName( address );
+		for ( int i = 0; i < controllers; ++i ) {
+			endpoints.put( port + i, new Endpoint() );
+			connection.connect( new InetSocketAddress( listenAddress, port + i ) );
+		}
+
+		String containerKey = properties.getProperty( "containerKey" );
+		helper = properties.getProperty( "helper" );
+		if ( helper == null ) {
+			connection.connect( new InetSocketAddress( listenAddress, plexPort ) );
+			helper = startHelper( scheduler, port + controllers + 1 );
+			containerKey = "/playQueues/1";
+		}
+		if ( containerKey != null ) {
+			get( "playback", "/player/playback/playMedia?containerKey=" + containerKey + "&key=/library/metadata/1&offset=0&commandID=0",
+					"load-0" );
+		}
+
+		int[] weights = getMix();
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos( duration );
+		List< Thread > threads = new ArrayList< Thread >();
+		for ( int i = 0; i < controllers; ++i ) {
+			Thread thread = new Thread( new Controller( "load-" + i, port + i, weights, end ), "Controller-" + i );
+			thread.start();
+			threads.add( thread );
+		}
+		System.out.println( "Running " + controllers + " controllers against " + helper + " for " + duration + "s" );
+		for ( Thread thread : threads ) {
+			thread.join();
+		}
+
+		report();
+		connection.close();
+		scheduler.shutdownNow();
+	}
+
+	// A helper wired as Main does, to a simulated NMT and the stand-in PLEX server
+	private String startHelper( ScheduledExecutorService scheduler, int nmtPort ) throws Exception {
+		SimulatedNmt device = new SimulatedNmt( "sim", "00:06:dc:00:00:01", scheduler );
+		device.setLatency( getInt( "latency", 20 ), getInt( "jitter", 10 ) );
+		device.setSeekTime( getInt( "seekTime", 1500 ) );
+		device.setLengths( videoLength, 240000 );
+		NmtSimulator simulator = new NmtSimulator();
+		simulator.add( nmtPort, device );
+		Connection nmtConnection = new SocketConnection( new ContainerServer( simulator, 2 ) );
+		nmtConnection.connect( new InetSocketAddress( InetAddress.getByName( address ), nmtPort ) );
+
+		HttpTransport transport = new HttpTransport( "helper", 50, 50, 5000, 10000 );
+		NetworkedMediaTank nmt = new NetworkedMediaTank( address + ':' + nmtPort, "sim", transport.getClient() );
+		PlexServer server = new PlexServer( address, plexPort, "Stand-in" );
+		server.setClientId( "pch-00-06-dc-00-00-01" );
+		server.setClientName( "sim" );
+
+		PlexNMTHelper helper = new PlexNMTHelper( nmt, InetAddress.getByName( address ), 0, server );
+		helper.setClientId( "pch-00-06-dc-00-00-01" );
+		helper.setPublisher( new TimelinePublisher( 4, 100, 2000 ) );
+		helper.start( scheduler );
+
+		Connection connection = new SocketConnection( new ContainerServer( helper, 4 ) );
+		InetSocketAddress listening = (InetSocketAddress) connection.connect( new InetSocketAddress( InetAddress.getByName( address ), 0 ) );
+		return address + ':' + listening.getPort();
+	}
+
+	private int[] getMix() {
+		Map< String, Integer > mix = new LinkedHashMap< String, Integer >();
+		mix.put( "poll", 70 );
+		mix.put( "playback", 10 );
+		mix.put( "navigation", 15 );
+		mix.put( "subscribe", 5 );
+		String value = properties.getProperty( "mix" );
+		if ( value != null ) {
+			for ( String part : value.split( "," ) ) {
+				String[] pair = part.split( "=" );
+				if ( !mix.containsKey( pair[0].trim() ) ) {
+					throw new IllegalArgumentException( "Unknown kind of request " + pair[0] );
+				}
+				mix.put( pair[0].trim(), Integer.parseInt( pair[1].trim() ) );
+			}
+		}
+		int[] weights = new int[4];
+		int total = 0;
+		int i = 0;
+		for ( int weight : mix.values() ) {
+			total += weight;
+			weights[i++] = total;
+		}
+		return weights;
+	}
+
+	private boolean get( String kind, String path, String clientId ) {
+		long start = System.nanoTime();
+		try {
+			HttpGet get = new HttpGet( "http://" + helper + path );
+			get.setHeader( "X-Plex-Client-Identifier", clientId );
+			CloseableHttpResponse response = client.execute( get );
+			try {
+				EntityUtils.consume( response.getEntity() );
+				if ( response.getStatusLine().getStatusCode() != 200 ) {
+					errors.get( kind ).incrementAndGet();
+					return false;
+				}
+			} finally {
+				response.close();
+			}
+			latencies.get( kind ).recordNanos( System.nanoTime() - start );
+			return true;
+		} catch ( IOException ex ) {
+			errors.get( kind ).incrementAndGet();
+			return false;
+		}
+	}
+
+	private class Controller implements Runnable {
+		private String clientId;
+		private int port;
+		private int[] weights;
+		private long end;
+		private int commandId = 0;
+
+		private Controller( String clientId, int port, int[] weights, long end ) {
+			this.clientId = clientId;
+			this.port = port;
+			this.weights = weights;
+			this.end = end;
+		}
+
+		public void run() {
+			Random random = new Random();
+			int thinkTime = getInt( "thinkTime", 1000 );
+			subscribe();
+			while ( System.nanoTime() < end ) {
+				int pick = random.nextInt( weights[3] );
+				if ( pick < weights[0] ) {
+					get( "poll", "/player/timeline/poll?commandID=" + ++commandId, clientId );
+				} else if ( pick < weights[1] ) {
+					playback( random );
+				} else if ( pick < weights[2] ) {
+					String key = navigationKeys[random.nextInt( navigationKeys.length )];
+					get( "navigation", "/player/navigation/" + key + "?commandID=" + ++commandId, clientId );
+				} else {
+					subscribe();
+				}
+				if ( thinkTime > 0 ) {
+					try {
+						Thread.sleep( random.nextInt( 2 * thinkTime ) );
+					} catch ( InterruptedException ex ) {
+						return;
+					}
+				}
+			}
+			get( "subscribe", "/player/timeline/unsubscribe?commandID=" + ++commandId, clientId );
+		}
+
+		private void subscribe() {
+			get( "subscribe", "/player/timeline/subscribe?protocol=http&port=" + port + "&commandID=" + ++commandId, clientId );
+		}
+
+		private void playback( Random random ) {
+			String command = playbackCommands[random.nextInt( playbackCommands.length )];
+			String query = "?type=video&commandID=" + ++commandId;
+			if ( command.equals( "seekTo" ) ) {
+				int offset = random.nextInt( videoLength - 60000 );
+				expect( null, offset );
+				query += "&offset=" + offset;
+			} else if ( command.equals( "pause" ) || command.equals( "play" ) ) {
+				// Pause toggles on the NMT, so which state to expect is kept here
+				boolean pause = !paused.get();
+				paused.set( pause );
+				command = pause ? "pause" : "play";
+				expect( pause ? "paused" : "playing", -1 );
+			}
+			get( "playback", "/player/playback/" + command + query, clientId );
+		}
+	}
+
+	private void expect( String state, int time ) {
+		expectations.incrementAndGet();
+		Expectation previous = expected.get();
+		expected.set( new Expectation( previous == null ? 1 : previous.id + 1, state, time ) );
+	}
+
+	private static class Expectation {
+		private long id;
+		private String state;
+		private int time;
+		private long sent = System.nanoTime();
+
+		private Expectation( long id, String state, int time ) {
+			this.id = id;
+			this.state = state;
+			this.time = time;
+		}
+
+		private boolean isMetBy( String state, int time ) {
+			if ( this.state != null ) {
+				return this.state.equals( state );
+			}
+			// The NMT reports whole seconds and playback carries on, so a timeline a few seconds on still shows the seek
+			return time >= this.time - 1000 && time <= this.time + 5000;
+		}
+	}
+
+	// A controller's timeline endpoint
+	private class Endpoint {
+		private long lastMet = 0;
+
+		private synchronized void receive( String xml ) {
+			posts.incrementAndGet();
+			Expectation expectation = expected.get();
+			if ( expectation == null || expectation.id <= lastMet ) {
+				return;
+			}
+			int start = xml.indexOf( "type=\"video\"" );
+			if ( start < 0 ) {
+				return;
+			}
+			start = xml.lastIndexOf( '<', start );
+			int end = xml.indexOf( '>', start );
+			String element = xml.substring( start, end );
+			String time = getAttribute( element, "time" );
+			if ( expectation.isMetBy( getAttribute( element, "state" ), time == null ? -1 : Integer.parseInt( time ) ) ) {
+				lag.recordNanos( System.nanoTime() - expectation.sent );
+				delivered.incrementAndGet();
+				lastMet = expectation.id;
+			}
+		}
+	}
+
+	private static String getAttribute( String element, String name ) {
+		int start = element.indexOf( ' ' + name + "=\"" );
+		if ( start < 0 ) {
+			return null;
+		}
+		start += name.length() + 3;
+		return element.substring( start, element.indexOf( '"', start ) );
+	}
+
+	// The endpoints and the stand-in PLEX server share the server, the Host header tells them apart
+	public void handle( Request request, Response response ) {
+		try {
+			String host = request.getValue( "Host" );
+			int port = host == null ? -1 : Integer.parseInt( host.substring( host.lastIndexOf( ':' ) + 1 ) );
+			String path = request.getPath().getPath();
+			Endpoint endpoint = endpoints.get( port );
+			String body = "";
+			if ( endpoint != null ) {
+				endpoint.receive( request.getContent() );
+			} else if ( port == plexPort && path.startsWith( "/playQueues" ) ) {
+				body = getPlayQueue();
+			} else if ( port == plexPort ) {
+				body = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Response code=\"200\" status=\"OK\" />";
+			} else {
+				response.setStatus( Status.NOT_FOUND );
+			}
+			byte[] content = body.getBytes( utf8 );
+			response.setContentType( "text/xml" );
+			response.setContentLength( content.length );
+			OutputStream out = response.getOutputStream();
+			out.write( content );
+			out.close();
+		} catch ( Exception ex ) {
+			ex.printStackTrace();
+		}
+	}
+
+	private String getPlayQueue() {
+		StringBuilder sb = new StringBuilder( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" );
+		sb.append( "<MediaContainer size=\"20\" playQueueID=\"1\" playQueueVersion=\"1\" playQueueSelectedItemOffset=\"0\">" );
+		for ( int i = 1; i <= 20; ++i ) {
+			sb.append( "<Video playQueueItemID=\"" ).append( i ).append( "\" ratingKey=\"" ).append( i ).append( "\" key=\"/library/metadata/" )
+					.append( i ).append( "\" type=\"movie\" title=\"Movie " ).append( i ).append( "\" guid=\"local://" ).append( i )
+					.append( "\" duration=\"" ).append( videoLength ).append( "\"><Media><Part key=\"/library/parts/" ).append( i )
+					.append( "/file.mkv\" file=\"/media/Movies/Movie " ).append( i ).append( ".mkv\" /></Media></Video>" );
+		}
+		sb.append( "</MediaContainer>" );
+		return sb.toString();
+	}
+
+	private void report() {
+		System.out.println( String.format( "%-12s %8s %7s %9s %9s %9s %9s", "request", "count", "errors", "p50 ms", "p90 ms", "p99 ms", "max ms" ) );
+		for ( Map.Entry< String, Histogram > entry : latencies.entrySet() ) {
+			print( entry.getKey(), entry.getValue(), Long.toString( errors.get( entry.getKey() ).get() ) );
+		}
+		print( "timeline lag", lag, "-" );
+		System.out.println( posts.get() + " timelines received, " + delivered.get() + " of them first to show one of the " + expectations.get()
+				+ " pauses, plays and seeks sent" );
+	}
+
+	private static void print( String name, Histogram histogram, String errors ) {
+		System.out.println( String.format( "%-12s %8d %7s %9.1f %9.1f %9.1f %9.1f", name, histogram.getCount(), errors,
+				histogram.getPercentile( 0.5 ) / 1e3, histogram.getPercentile( 0.9 ) / 1e3, histogram.getPercentile( 0.99 ) / 1e3,
+				histogram.getMax() / 1e3 ) );
+	}
+
+	private int getInt( String name, int defaultValue ) {
+		String value = properties.getProperty( name );
+		return value == null ? defaultValue : Integer.parseInt( value.trim() );
+	}
+}
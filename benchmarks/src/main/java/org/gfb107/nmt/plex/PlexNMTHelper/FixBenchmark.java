@@ -0,0 +1,78 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link PlexNMTHelper#fix(Video)} with many replacement rules, for a file under the last rule added and for a local file no rule
+ * matches. The linear benchmark is the scan over every rule that fix did before the replacements were indexed, for comparison.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class FixBenchmark {
+	@Param( { "10", "100", "1000" } )
+	private int rules;
+
+	private PlexNMTHelper helper;
+	private List< Replacement > replacements = new ArrayList< Replacement >();
+	private Video matched;
+	private Video unmatched;
+
+	@Setup
+	public void setUp() throws Exception {
+		NetworkedMediaTank nmt = new NetworkedMediaTank( "127.0.0.1", "Benchmark" );
+		helper = new PlexNMTHelper( nmt, InetAddress.getLoopbackAddress(), 3005, new PlexServer( "127.0.0.1", 32400, "Server" ) );
+
+		for ( int i = 0; i < rules; ++i ) {
+			Replacement replacement = new Replacement( "//nas" + i + "/share" + i + "/", "smb://nas" + i + "/share" + i + "/" );
+			replacement.setPlayTo( "/opt/sybhttpd/localhost.drives/NETWORK_SHARE/share" + i + "/" );
+			helper.getReplacements().add( replacement );
+			replacements.add( replacement );
+		}
+
+		int last = rules - 1;
+		matched = new Video( "/library/metadata/1", "/library/metadata/1", "1", "Matched", null, 6124000, "\\\\nas" + last + "\\share" + last
+				+ "\\Movies\\17 Again (2009)\\17 Again.mkv", "/library/parts/1/file.mkv" );
+		unmatched = new Video( "/library/metadata/2", "/library/metadata/2", "2", "Unmatched", null, 6124000,
+				"/srv/media/Movies/17 Again (2009)/17 Again.mkv", "/library/parts/2/file.mkv" );
+	}
+
+	@Benchmark
+	public String matched() throws Exception {
+		return helper.fix( matched ).getPlayFile();
+	}
+
+	@Benchmark
+	public String unmatched() throws Exception {
+		return helper.fix( unmatched ).getPlayFile();
+	}
+
+	@Benchmark
+	public String linear() {
+		String file = matched.getFile().replace( '\\', '/' );
+		for ( Replacement replacement : replacements ) {
+			if ( replacement.matches( file ) ) {
+				return replacement.convert( file );
+			}
+		}
+		return null;
+	}
+}
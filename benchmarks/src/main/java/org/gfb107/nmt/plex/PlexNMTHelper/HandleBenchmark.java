@@ -0,0 +1,93 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.simpleframework.http.core.ContainerServer;
+import org.simpleframework.transport.connect.Connection;
+import org.simpleframework.transport.connect.SocketConnection;
+
+/**
+ * Requests from a controller handled end to end: a helper listening on the loopback interface, as Main starts it, and a client
+ * reusing one kept alive connection, for the routes that don't involve the NMT. Client and helper run in the same JVM, so the
+ * allocation figures include both sides.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class HandleBenchmark {
+	private ScheduledExecutorService scheduler;
+	private Connection connection;
+	private CloseableHttpClient client;
+	private String prefix;
+
+	@Setup
+	public void setUp() throws Exception {
+		scheduler = Executors.newScheduledThreadPool( 2 );
+		NetworkedMediaTank nmt = new NetworkedMediaTank( "127.0.0.1", "Benchmark" );
+		PlexNMTHelper helper = new PlexNMTHelper( nmt, InetAddress.getLoopbackAddress(), 0, new PlexServer( "127.0.0.1", 32400, "Server" ) );
+		helper.setClientId( "pch-00-06-dc-01-02-03" );
+		helper.start( scheduler );
+
+		connection = new SocketConnection( new ContainerServer( helper, 4 ) );
+		InetSocketAddress address = (InetSocketAddress) connection.connect( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ) );
+		prefix = "http://127.0.0.1:" + address.getPort();
+		client = HttpClients.createDefault();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		client.close();
+		connection.close();
+		scheduler.shutdownNow();
+	}
+
+	private int get( String path ) throws Exception {
+		HttpGet get = new HttpGet( prefix + path );
+		get.setHeader( "X-Plex-Client-Identifier", "benchmark-controller" );
+		CloseableHttpResponse response = client.execute( get );
+		try {
+			return EntityUtils.toByteArray( response.getEntity() ).length;
+		} finally {
+			response.close();
+		}
+	}
+
+	@Benchmark
+	public int resources() throws Exception {
+		return get( "/resources" );
+	}
+
+	@Benchmark
+	public int poll() throws Exception {
+		return get( "/player/timeline/poll?commandID=17" );
+	}
+
+	@Benchmark
+	public int subscribe() throws Exception {
+		return get( "/player/timeline/subscribe?protocol=http&port=32500&commandID=17" )
+				+ get( "/player/timeline/unsubscribe?commandID=18" );
+	}
+}
@@ -0,0 +1,135 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+import org.simpleframework.http.Status;
+import org.simpleframework.http.core.Container;
+import org.simpleframework.http.core.ContainerServer;
+import org.simpleframework.transport.connect.Connection;
+import org.simpleframework.transport.connect.SocketConnection;
+
+/**
+ * Runs any number of {@link SimulatedNmt}s, one per port, for load and soak testing the helper without hardware. Settings are given
+ * as name=value arguments:
+ * <ul>
+ * <li>devices: how many devices to run (1)</li>
+ * <li>address, port: where the first device listens (127.0.0.1, 18008), the others take the ports after it</li>
+ * <li>latency, jitter: milliseconds each command takes, plus up to jitter either way (20, 10)</li>
+ * <li>seekTime: milliseconds a seek keeps the device busy on top of that (1500)</li>
+ * <li>timeoutRate, timeoutDelay: fraction of commands left unanswered and for how many milliseconds (0, 30000)</li>
+ * <li>videoLength, trackLength: seconds every video and track lasts (5400, 240)</li>
+ * <li>threads: scheduler threads answering commands for all devices (4)</li>
+ * <li>reportInterval: seconds between printing each device's figures, 0 for never (10)</li>
+ * </ul>
+ * The helper settings for the devices are printed at start up, each nmtAddress given as host:port.
+ */
+public class NmtSimulator implements Container {
+	private Map< Integer, SimulatedNmt > devices = new ConcurrentHashMap< Integer, SimulatedNmt >();
+
+	public void add( int port, SimulatedNmt device ) {
+		devices.put( port, device );
+	}
+
+	// Every port is served by the one server, the Host header tells which device a command is for
+	public void handle( Request request, Response response ) {
+		SimulatedNmt device = null;
+		String host = request.getValue( "Host" );
+		if ( host != null ) {
+			int colon = host.lastIndexOf( ':' );
+			if ( colon > 0 ) {
+				try {
+					device = devices.get( Integer.parseInt( host.substring( colon + 1 ) ) );
+				} catch ( NumberFormatException ex ) {
+					device = null;
+				}
+			}
+		}
+		if ( device != null ) {
+			device.handle( request, response );
+			return;
+		}
+		try {
+			response.setStatus( Status.NOT_FOUND );
+			response.setContentLength( 0 );
+			response.close();
+		} catch ( IOException ex ) {
+			// The connection is gone
+		}
+	}
+
+	public static void main( String[] args ) throws Exception {
+		Properties properties = new Properties();
+		for ( String arg : args ) {
+			int equals = arg.indexOf( '=' );
+			if ( equals < 0 ) {
+				System.err.println( "Expected name=value, got " + arg );
+				System.exit( 1 );
+			}
+			properties.setProperty( arg.substring( 0, equals ), arg.substring( equals + 1 ) );
+		}
+
+		int count = getInt( properties, "devices", 1 );
+		String address = properties.getProperty( "address", "127.0.0.1" );
+		int port = getInt( properties, "port", 18008 );
+		int reportInterval = getInt( properties, "reportInterval", 10 );
+
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool( getInt( properties, "threads", 4 ) );
+		NmtSimulator simulator = new NmtSimulator();
+		Connection connection = new SocketConnection( new ContainerServer( simulator, getInt( properties, "threads", 4 ) ) );
+
+		final List< SimulatedNmt > started = new ArrayList< SimulatedNmt >();
+		StringBuilder names = new StringBuilder();
+		StringBuilder settings = new StringBuilder();
+		for ( int i = 0; i < count; ++i ) {
+			String name = "sim" + (i + 1);
+			SimulatedNmt device = new SimulatedNmt( name, String.format( "00:06:dc:%02x:%02x:%02x", (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff ),
+					scheduler );
+			device.setLatency( getInt( properties, "latency", 20 ), getInt( properties, "jitter", 10 ) );
+			device.setSeekTime( getInt( properties, "seekTime", 1500 ) );
+			device.setTimeouts( Double.parseDouble( properties.getProperty( "timeoutRate", "0" ) ), getInt( properties, "timeoutDelay", 30000 ) );
+			device.setLengths( getInt( properties, "videoLength", 5400 ) * 1000, getInt( properties, "trackLength", 240 ) * 1000 );
+
+			simulator.add( port + i, device );
+			connection.connect( new InetSocketAddress( InetAddress.getByName( address ), port + i ) );
+			started.add( device );
+
+			names.append( i == 0 ? "" : "," ).append( name );
+			settings.append( name ).append( ".nmtAddress=" ).append( address ).append( ':' ).append( port + i ).append( '\n' );
+			settings.append( name ).append( ".nmtName=" ).append( name ).append( '\n' );
+			settings.append( name ).append( ".port=" ).append( 7777 + i ).append( '\n' );
+		}
+
+		System.out.println( "Simulating " + count + " NMTs on " + address + ", ports " + port + " to " + (port + count - 1) );
+		System.out.println( "Helper settings:" );
+		System.out.println( "devices=" + names );
+		System.out.print( settings );
+
+		if ( reportInterval > 0 ) {
+			scheduler.scheduleAtFixedRate( new Runnable() {
+				public void run() {
+					for ( SimulatedNmt device : started ) {
+						System.out.println( String.format( "%-8s answered %8d  dropped %6d  seeks %6d  queued %3d", device.getName(),
+								device.getAnswered(), device.getDropped(), device.getSeeks(), device.getQueued() ) );
+					}
+				}
+			}, reportInterval, reportInterval, TimeUnit.SECONDS );
+		}
+	}
+
+	private static int getInt( Properties properties, String name, int defaultValue ) {
+		String value = properties.getProperty( name );
+		return value == null ? defaultValue : Integer.parseInt( value.trim() );
+	}
+}
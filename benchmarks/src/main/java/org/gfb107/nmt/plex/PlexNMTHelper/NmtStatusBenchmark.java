@@ -0,0 +1,68 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import nu.xom.Builder;
+import nu.xom.Element;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding a captured get_current_vod_info response, with a new XOM Builder per call as NetworkedMediaTank.sendCommand did, against
+ * scanning it into a reused NmtStatus as the now playing monitor does.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class NmtStatusBenchmark {
+	private byte[] data;
+	private NmtStatus status = new NmtStatus();
+
+	@Setup
+	public void setUp() throws Exception {
+		data = read( NmtStatusBenchmark.class.getResourceAsStream( "/get_current_vod_info.xml" ) );
+	}
+
+	@Benchmark
+	public int xom() throws Exception {
+		Element container = new Builder().build( new ByteArrayInputStream( data ) ).getRootElement();
+		Element response = container.getFirstChildElement( "response" );
+		String fullPath = response.getFirstChildElement( "fullPath" ).getValue();
+		String state = response.getFirstChildElement( "currentStatus" ).getValue();
+		int currentTime = Integer.parseInt( response.getFirstChildElement( "currentTime" ).getValue() ) * 1000;
+		int totalTime = Integer.parseInt( response.getFirstChildElement( "totalTime" ).getValue() ) * 1000;
+		return fullPath.length() + state.length() + currentTime + totalTime;
+	}
+
+	@Benchmark
+	public int scan() throws Exception {
+		status.decode( new ByteArrayInputStream( data ) );
+		return status.getFullPath().length() + status.getState().length() + status.getCurrentTime() + status.getTotalTime();
+	}
+
+	static byte[] read( InputStream in ) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count;
+		while ( (count = in.read( buffer )) > 0 ) {
+			out.write( buffer, 0, count );
+		}
+		in.close();
+		return out.toByteArray();
+	}
+}
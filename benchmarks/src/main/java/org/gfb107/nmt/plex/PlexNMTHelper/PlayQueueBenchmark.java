@@ -0,0 +1,82 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import nu.xom.Builder;
+import nu.xom.Element;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning a play queue container from the server into a {@link PlayQueue}, for queues from an album up to a whole library, half
+ * videos and half tracks. Both the mapping of already parsed elements and the parse plus mapping that getPlayQueue does after the
+ * request are measured.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class PlayQueueBenchmark {
+	@Param( { "20", "500", "5000" } )
+	private int items;
+
+	private PlexServer server;
+	private byte[] data;
+	private Element container;
+
+	@Setup
+	public void setUp() throws Exception {
+		server = new PlexServer( "192.168.1.10", 32400, "Server" );
+
+		StringBuilder sb = new StringBuilder( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" );
+		sb.append( "<MediaContainer size=\"" ).append( items ).append( "\" playQueueID=\"42\" playQueueVersion=\"3\"" );
+		sb.append( " playQueueSelectedItemID=\"1000\" playQueueSelectedItemOffset=\"0\">\n" );
+		for ( int i = 0; i < items; ++i ) {
+			if ( i % 2 == 0 ) {
+				sb.append( "<Video playQueueItemID=\"" ).append( 1000 + i ).append( "\" ratingKey=\"" ).append( i )
+						.append( "\" key=\"/library/metadata/" ).append( i ).append( "\" type=\"episode\" title=\"Episode " ).append( i )
+						.append( "\" guid=\"com.plexapp.agents.thetvdb://12345/1/" ).append( i ).append( "?lang=en\" duration=\"1320000\">" );
+				sb.append( "<Media id=\"" ).append( i ).append( "\" duration=\"1320000\" container=\"mkv\">" );
+				sb.append( "<Part id=\"" ).append( i ).append( "\" key=\"/library/parts/" ).append( i ).append( "/file.mkv\"" )
+						.append( " file=\"\\\\nas\\TV\\Show\\Season 1\\Episode " ).append( i ).append( ".mkv\" size=\"734003200\" />" );
+				sb.append( "</Media></Video>\n" );
+			} else {
+				sb.append( "<Track playQueueItemID=\"" ).append( 1000 + i ).append( "\" ratingKey=\"" ).append( i )
+						.append( "\" key=\"/library/metadata/" ).append( i ).append( "\" type=\"track\" title=\"Track " ).append( i )
+						.append( "\" duration=\"245000\">" );
+				sb.append( "<Media id=\"" ).append( i ).append( "\" duration=\"245000\" container=\"mp3\">" );
+				sb.append( "<Part id=\"" ).append( i ).append( "\" key=\"/library/parts/" ).append( i ).append( "/file.mp3\"" )
+						.append( " file=\"/music/Artist/Album/" ).append( i ).append( ".mp3\" size=\"9800000\" />" );
+				sb.append( "</Media></Track>\n" );
+			}
+		}
+		sb.append( "</MediaContainer>\n" );
+
+		data = sb.toString().getBytes( Charset.forName( "UTF-8" ) );
+		container = new Builder().build( new ByteArrayInputStream( data ) ).getRootElement();
+	}
+
+	@Benchmark
+	public PlayQueue map() throws Exception {
+		return server.getPlayQueue( "/playQueues/42", container );
+	}
+
+	@Benchmark
+	public PlayQueue parseAndMap() throws Exception {
+		return server.getPlayQueue( "/playQueues/42", new Builder().build( new ByteArrayInputStream( data ) ).getRootElement() );
+	}
+}
@@ -0,0 +1,309 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.simpleframework.http.Query;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+import org.simpleframework.http.core.Container;
+
+/**
+ * A simulated NMT, answering the commands the helper sends: get_mac_address, send_key, start_vod, start_aod, get_current_vod_info,
+ * get_current_aod_info, set_time_seek_vod and list_user_storage_file. Like the real device it works through commands one at a time,
+ * each taking the configured latency plus a random jitter, and a seek keeps it busy for longer. Playback follows a clock from the
+ * moment the command is carried out: the position advances while playing, stops moving while paused and playback ends at the end of
+ * the file. A fraction of commands can be made to go unanswered for a while, as a device that's busy or off the network would.
+ * Answers are sent from a shared scheduler, so many devices can run on a few threads.
+ */
+public class SimulatedNmt implements Container {
+	private static final Charset utf8 = Charset.forName( "UTF-8" );
+
+	private String name;
+	private String macAddress;
+	private ScheduledExecutorService scheduler;
+	private Random random = new Random();
+
+	private int latency = 20;
+	private int jitter = 10;
+	private int seekTime = 1500;
+	private double timeoutRate = 0;
+	private int timeoutDelay = 30000;
+	private int videoLength = 5400000;
+	private int trackLength = 240000;
+
+	// Commands waiting their turn, answered in order whichever scheduler thread gets to them
+	private Queue< Command > commands = new LinkedList< Command >();
+	private long busyUntil = 0;
+
+	// What's playing, "vod" or "aod", null when stopped
+	private String type = null;
+	private String title;
+	private String file;
+	private int length;
+	private boolean paused;
+	private int position;
+	private long positionTime;
+
+	private AtomicLong answered = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+	private AtomicLong seeks = new AtomicLong();
+
+	public SimulatedNmt( String name, String macAddress, ScheduledExecutorService scheduler ) {
+		this.name = name;
+		this.macAddress = macAddress;
+		this.scheduler = scheduler;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Sets how long each command takes, in milliseconds: the latency plus up to jitter either way.
+	 */
+	public void setLatency( int latency, int jitter ) {
+		this.latency = latency;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Sets how long in milliseconds a seek keeps the device busy, on top of the latency.
+	 */
+	public void setSeekTime( int seekTime ) {
+		this.seekTime = seekTime;
+	}
+
+	/**
+	 * Sets the fraction of commands that go unanswered, and how long in milliseconds before their connection is closed.
+	 */
+	public void setTimeouts( double timeoutRate, int timeoutDelay ) {
+		this.timeoutRate = timeoutRate;
+		this.timeoutDelay = timeoutDelay;
+	}
+
+	/**
+	 * Sets the length in milliseconds of every video and track played.
+	 */
+	public void setLengths( int videoLength, int trackLength ) {
+		this.videoLength = videoLength;
+		this.trackLength = trackLength;
+	}
+
+	public long getAnswered() {
+		return answered.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getSeeks() {
+		return seeks.get();
+	}
+
+	public synchronized int getQueued() {
+		return commands.size();
+	}
+
+	public void handle( Request request, final Response response ) {
+		String module = request.getPath().getPath().substring( 1 );
+		Query query = request.getQuery();
+		String[] args = new String[5];
+		for ( int i = 0; i < args.length; ++i ) {
+			args[i] = query.get( "arg" + i );
+		}
+		Command command = new Command( module, args, response );
+
+		if ( timeoutRate > 0 && random.nextDouble() < timeoutRate ) {
+			dropped.incrementAndGet();
+			scheduler.schedule( new Runnable() {
+				public void run() {
+					close( response );
+				}
+			}, timeoutDelay, TimeUnit.MILLISECONDS );
+			return;
+		}
+
+		long now = System.nanoTime();
+		long delay;
+		synchronized ( this ) {
+			long start = Math.max( now, busyUntil );
+			long took = latency + (jitter > 0 ? random.nextInt( 2 * jitter + 1 ) - jitter : 0);
+			if ( "set_time_seek_vod".equals( command.args[0] ) ) {
+				took += seekTime;
+			}
+			busyUntil = start + TimeUnit.MILLISECONDS.toNanos( Math.max( 0, took ) );
+			delay = busyUntil - now;
+			commands.add( command );
+		}
+		scheduler.schedule( new Runnable() {
+			public void run() {
+				answerNext();
+			}
+		}, delay, TimeUnit.NANOSECONDS );
+	}
+
+	private void answerNext() {
+		Command command;
+		String xml;
+		synchronized ( this ) {
+			command = commands.poll();
+			xml = carryOut( command );
+		}
+		try {
+			Response response = command.response;
+			byte[] content = xml.getBytes( utf8 );
+			response.setDate( "Date", System.currentTimeMillis() );
+			response.setContentType( "text/xml" );
+			response.setContentLength( content.length );
+			OutputStream body = response.getOutputStream();
+			body.write( content );
+			body.close();
+			answered.incrementAndGet();
+		} catch ( IOException ex ) {
+			// The helper gave up waiting
+		}
+	}
+
+	private static void close( Response response ) {
+		try {
+			response.close();
+		} catch ( IOException ex ) {
+			// Nothing to do, the connection is gone either way
+		}
+	}
+
+	private String carryOut( Command command ) {
+		StringBuilder sb = new StringBuilder( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<theDavidBox><request><arg0>" );
+		sb.append( escape( command.args[0] ) ).append( "</arg0><module>" ).append( escape( command.module ) ).append( "</module></request>" );
+
+		int returnValue = 0;
+		String module = command.module;
+		String[] args = command.args;
+		String name = args[0] == null ? "" : args[0];
+		updateClock();
+		if ( module.equals( "system" ) && name.equals( "get_mac_address" ) ) {
+			sb.append( "<response><macAddress>" ).append( macAddress ).append( "</macAddress></response>" );
+		} else if ( module.equals( "system" ) && name.equals( "send_key" ) ) {
+			sendKey( args[1] );
+		} else if ( module.equals( "playback" ) && name.equals( "start_vod" ) ) {
+			start( "vod", args[1], args[2], videoLength, args[4] );
+		} else if ( module.equals( "playback" ) && name.equals( "start_aod" ) ) {
+			start( "aod", args[1], args[2], trackLength, null );
+		} else if ( module.equals( "playback" ) && (name.equals( "get_current_vod_info" ) || name.equals( "get_current_aod_info" )) ) {
+			if ( type != null && name.equals( "get_current_" + type + "_info" ) ) {
+				sb.append( "<response><currentStatus>" ).append( paused ? "pause" : "play" ).append( "</currentStatus><currentTime>" )
+						.append( position / 1000 ).append( "</currentTime><fullPath>" ).append( escape( file ) ).append( "</fullPath><title>" )
+						.append( escape( title ) ).append( "</title><totalTime>" ).append( length / 1000 ).append( "</totalTime></response>" );
+			} else {
+				returnValue = 1;
+			}
+		} else if ( module.equals( "playback" ) && name.equals( "set_time_seek_vod" ) ) {
+			returnValue = seek( args[1] ) ? 0 : 1;
+		} else if ( module.equals( "file_operation" ) && name.equals( "list_user_storage_file" ) ) {
+			String converted = convert( args[1] );
+			if ( converted != null ) {
+				sb.append( "<response><convertPath>" ).append( escape( converted ) ).append( "</convertPath></response>" );
+			} else {
+				returnValue = 1;
+			}
+		} else {
+			returnValue = 1;
+		}
+
+		sb.append( "<returnValue>" ).append( returnValue ).append( "</returnValue></theDavidBox>" );
+		return sb.toString();
+	}
+
+	// Brings the position up to now, stopping at the end of the file
+	private void updateClock() {
+		long now = System.nanoTime();
+		if ( type != null && !paused ) {
+			position += (int) TimeUnit.NANOSECONDS.toMillis( now - positionTime );
+			if ( position >= length ) {
+				type = null;
+			}
+		}
+		positionTime = now;
+	}
+
+	private void sendKey( String key ) {
+		if ( type == null || key == null ) {
+			return;
+		}
+		if ( key.equals( "pause" ) ) {
+			paused = !paused;
+		} else if ( key.equals( "play" ) ) {
+			paused = false;
+		} else if ( key.equals( "stop" ) ) {
+			type = null;
+		}
+	}
+
+	private void start( String type, String title, String file, int length, String seconds ) {
+		this.type = type;
+		this.title = title;
+		this.file = file;
+		this.length = length;
+		paused = false;
+		position = seconds == null ? 0 : Integer.parseInt( seconds ) * 1000;
+	}
+
+	private boolean seek( String timestamp ) {
+		if ( !"vod".equals( type ) || timestamp == null ) {
+			return false;
+		}
+		String[] parts = timestamp.split( ":" );
+		int seconds = 0;
+		for ( String part : parts ) {
+			seconds = seconds * 60 + Integer.parseInt( part );
+		}
+		position = Math.min( seconds * 1000, length );
+		seeks.incrementAndGet();
+		return true;
+	}
+
+	// Network shares are mounted under NETWORK_SHARE, anything else can't be converted
+	private static String convert( String path ) {
+		if ( path == null ) {
+			return null;
+		}
+		int scheme = path.indexOf( "://" );
+		if ( scheme < 0 || !(path.startsWith( "smb" ) || path.startsWith( "nfs" )) ) {
+			return null;
+		}
+		int server = path.indexOf( '/', scheme + 3 );
+		if ( server < 0 ) {
+			return null;
+		}
+		return "/opt/sybhttpd/localhost.drives/NETWORK_SHARE/" + path.substring( server + 1 );
+	}
+
+	private static String escape( String value ) {
+		if ( value == null ) {
+			return "";
+		}
+		return value.replace( "&", "&amp;" ).replace( "<", "&lt;" ).replace( ">", "&gt;" );
+	}
+
+	private static class Command {
+		private String module;
+		// arg0 is the command, the rest its arguments
+		private String[] args;
+		private Response response;
+
+		private Command( String module, String[] args, Response response ) {
+			this.module = module;
+			this.args = args;
+			this.response = response;
+		}
+	}
+}
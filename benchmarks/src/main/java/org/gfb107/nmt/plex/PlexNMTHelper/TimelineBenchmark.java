@@ -0,0 +1,66 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering a timeline update for one subscriber: building the elements and serializing them with toXML, as every subscriber used to,
+ * against filling in a {@link TimelineWriter.Template}, both when the state is unchanged and the cached template is reused, and when
+ * the playing position moves on every call and the template is rendered again.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class TimelineBenchmark {
+	private static final Charset utf8 = Charset.forName( "UTF-8" );
+
+	private Video video;
+	private TimelineSubscriber subscriber;
+	private TimelineWriter writer;
+	private int time = 0;
+
+	@Setup
+	public void setUp() {
+		PlexServer server = new PlexServer( "192.168.1.10", 32400, "Server" );
+		video = new Video( "/library/metadata/1234", "/library/metadata/1234", "1234", "17 Again", "com.plexapp.agents.imdb://tt0974661?lang=en",
+				6124000, "\\\\nas\\Movies\\17 Again.mkv", "http://192.168.1.10:32400/library/parts/5678/file.mkv" );
+		video.setState( "playing" );
+		video.setCurrentTime( 1325000 );
+
+		subscriber = new TimelineSubscriber( "17", "192.168.1.20", 32500, server );
+		subscriber.setClient( "pch-00-06-dc-01-02-03", "Living Room" );
+		writer = new TimelineWriter( "pch-00-06-dc-01-02-03", server );
+	}
+
+	@Benchmark
+	public byte[] xom() {
+		return subscriber
+				.generateTimelineContainer( subscriber.generateEmptyTimeline( "music" ), subscriber.generateEmptyTimeline( "photo" ),
+						subscriber.generateTimeline( video ) ).toXML().getBytes( utf8 );
+	}
+
+	@Benchmark
+	public byte[] template() {
+		return writer.getTemplate( video, "playing" ).toByteArray( "17", "192.168.1.20", 32500 );
+	}
+
+	@Benchmark
+	public byte[] templateRendered() {
+		video.setCurrentTime( ++time );
+		return writer.getTemplate( video, "playing" ).toByteArray( "17", "192.168.1.20", 32500 );
+	}
+}
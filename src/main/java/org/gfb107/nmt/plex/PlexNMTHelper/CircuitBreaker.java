@@ -0,0 +1,83 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+/**
+ * Stops sending to a target that keeps failing. After enough failures in a row the breaker opens and requests are skipped; once the
+ * backoff has passed a single probe is let through, which closes the breaker if it succeeds and doubles the backoff if it fails, up
+ * to the maximum.
+ */
+public class CircuitBreaker {
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private int failureThreshold;
+	private long initialBackoff;
+	private long maximumBackoff;
+
+	private State state = State.CLOSED;
+	private int failures = 0;
+	private long backoff;
+	private long retryAt = 0;
+
+	public CircuitBreaker( int failureThreshold, long initialBackoff, long maximumBackoff ) {
+		this.failureThreshold = failureThreshold;
+		this.initialBackoff = initialBackoff;
+		this.maximumBackoff = maximumBackoff;
+		backoff = initialBackoff;
+	}
+
+	/**
+	 * @return true if a request may be sent now, false if it should be skipped
+	 */
+	public boolean allowRequest() {
+		return allowRequest( System.currentTimeMillis() );
+	}
+
+	synchronized boolean allowRequest( long now ) {
+		if ( state == State.CLOSED ) {
+			return true;
+		}
+		// A probe whose result never came back doesn't hold the breaker half open for good
+		if ( now < retryAt ) {
+			return false;
+		}
+		state = State.HALF_OPEN;
+		retryAt = now + backoff;
+		return true;
+	}
+
+	public synchronized void onSuccess() {
+		state = State.CLOSED;
+		failures = 0;
+		backoff = initialBackoff;
+	}
+
+	/**
+	 * @return true if this failure opened the breaker
+	 */
+	public boolean onFailure() {
+		return onFailure( System.currentTimeMillis() );
+	}
+
+	synchronized boolean onFailure( long now ) {
+		if ( state == State.HALF_OPEN ) {
+			backoff = Math.min( backoff * 2, maximumBackoff );
+		} else if ( state == State.OPEN || ++failures < failureThreshold ) {
+			return false;
+		}
+		state = State.OPEN;
+		retryAt = now + backoff;
+		return true;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return how long in milliseconds the breaker waits before the next probe
+	 */
+	public synchronized long getBackoff() {
+		return backoff;
+	}
+}
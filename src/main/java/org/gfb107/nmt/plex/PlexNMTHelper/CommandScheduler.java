@@ -0,0 +1,149 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Runs the commands for one NMT one at a time, in priority order. Commands in the interactive lane (keys, playback control) always go
+ * ahead of queued background commands (status polls). Instead of a fixed sleep after every command, the gap between commands follows
+ * the device's recent response time, so a responsive device is driven at full speed and a struggling one gets room to breathe.
+ */
+public class CommandScheduler implements Runnable {
+	private Logger logger = Logger.getLogger( CommandScheduler.class.getName() );
+
+	public enum Lane {
+		INTERACTIVE, BACKGROUND
+	}
+
+	private static final long minimumGap = TimeUnit.MILLISECONDS.toNanos( 10 );
+	private static final long maximumGap = TimeUnit.MILLISECONDS.toNanos( 100 );
+
+	private String name;
+	private PriorityBlockingQueue< Command< ? > > queue = new PriorityBlockingQueue< Command< ? > >();
+	private AtomicLong sequence = new AtomicLong();
+
+	private AtomicInteger[] depth = new AtomicInteger[Lane.values().length];
+	private AtomicLong[] waitTotal = new AtomicLong[Lane.values().length];
+	private AtomicLong[] waitCount = new AtomicLong[Lane.values().length];
+	private AtomicLong[] waitMax = new AtomicLong[Lane.values().length];
+
+	private volatile long averageResponse = 0;
+	private long lastFinished = System.nanoTime() - maximumGap;
+
+	private volatile boolean stop = false;
+
+	public CommandScheduler( String name ) {
+		this.name = name;
+		for ( int i = 0; i < depth.length; ++i ) {
+			depth[i] = new AtomicInteger();
+			waitTotal[i] = new AtomicLong();
+			waitCount[i] = new AtomicLong();
+			waitMax[i] = new AtomicLong();
+		}
+
+		Thread thread = new Thread( this, "CommandScheduler-" + name );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	public < T > Future< T > submit( Lane lane, Callable< T > callable ) {
+		Command< T > command = new Command< T >( lane, callable );
+		depth[lane.ordinal()].incrementAndGet();
+		queue.add( command );
+		return command;
+	}
+
+	public void setStop( boolean stop ) {
+		this.stop = stop;
+	}
+
+	public int getQueueDepth( Lane lane ) {
+		return depth[lane.ordinal()].get();
+	}
+
+	public long getAverageWait( Lane lane ) {
+		long count = waitCount[lane.ordinal()].get();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis( waitTotal[lane.ordinal()].get() / count );
+	}
+
+	public long getMaximumWait( Lane lane ) {
+		return TimeUnit.NANOSECONDS.toMillis( waitMax[lane.ordinal()].get() );
+	}
+
+	public long getAverageResponse() {
+		return TimeUnit.NANOSECONDS.toMillis( averageResponse );
+	}
+
+	/**
+	 * @return how long to leave the device alone after a command, a quarter of its average response time within fixed bounds
+	 */
+	public long getGap() {
+		return Math.min( maximumGap, Math.max( minimumGap, averageResponse / 4 ) );
+	}
+
+	public void run() {
+		logger.fine( "CommandScheduler running for " + name );
+		while ( !stop ) {
+			try {
+				long idle = System.nanoTime() - lastFinished;
+				long gap = getGap();
+				if ( idle < gap ) {
+					TimeUnit.NANOSECONDS.sleep( gap - idle );
+				}
+
+				Command< ? > command = queue.take();
+				int lane = command.lane.ordinal();
+				depth[lane].decrementAndGet();
+
+				long start = System.nanoTime();
+				long wait = start - command.queued;
+				waitTotal[lane].addAndGet( wait );
+				waitCount[lane].incrementAndGet();
+				if ( wait > waitMax[lane].get() ) {
+					waitMax[lane].set( wait );
+				}
+
+				command.run();
+
+				lastFinished = System.nanoTime();
+				averageResponse += (lastFinished - start - averageResponse) / 8;
+			} catch ( InterruptedException ex ) {
+				break;
+			} catch ( Exception ex ) {
+				ExceptionLogger.log( logger, ex );
+			}
+		}
+		logger.fine( "CommandScheduler ending for " + name );
+	}
+
+	@Override
+	public String toString() {
+		return name + " commands: interactive=" + getQueueDepth( Lane.INTERACTIVE ) + " queued/" + getAverageWait( Lane.INTERACTIVE )
+				+ "ms average wait, background=" + getQueueDepth( Lane.BACKGROUND ) + " queued/" + getAverageWait( Lane.BACKGROUND )
+				+ "ms average wait, response=" + getAverageResponse() + "ms";
+	}
+
+	private class Command< T > extends FutureTask< T > implements Comparable< Command< ? > > {
+		private Lane lane;
+		private long order = sequence.incrementAndGet();
+		private long queued = System.nanoTime();
+
+		private Command( Lane lane, Callable< T > callable ) {
+			super( callable );
+			this.lane = lane;
+		}
+
+		public int compareTo( Command< ? > other ) {
+			if ( lane != other.lane ) {
+				return lane.compareTo( other.lane );
+			}
+			return order < other.order ? -1 : (order == other.order ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers how the NMT converts network paths, one entry per share. Converting smb://server/share/dir/file.mkv tells us the NMT
+ * mounted smb://server/share/ somewhere, and every other file on that share converts the same way, so later files can be converted
+ * without asking. Paths the NMT couldn't convert are remembered too, for a shorter time, but only as themselves: one missing file
+ * says nothing about the rest of its share. The least recently used entries are dropped once there are too many.
+ */
+public class ConvertedPathCache {
+	private int maximumShares;
+	private long timeToLive;
+	private long negativeTimeToLive;
+
+	private Map< String, Share > entries;
+
+	public ConvertedPathCache( int maximumShares, long timeToLive, long negativeTimeToLive ) {
+		this.maximumShares = maximumShares;
+		this.timeToLive = timeToLive;
+		this.negativeTimeToLive = negativeTimeToLive;
+
+		entries = new LinkedHashMap< String, Share >( 16, 0.75f, true ) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( Map.Entry< String, Share > eldest ) {
+				return size() > ConvertedPathCache.this.maximumShares;
+			}
+		};
+	}
+
+	/**
+	 * @return the share part of a network path (scheme, server and first directory), or null if the path isn't on a share
+	 */
+	public static String getShare( String path ) {
+		int scheme = path.indexOf( "://" );
+		if ( scheme < 0 ) {
+			return null;
+		}
+		int server = path.indexOf( '/', scheme + 3 );
+		if ( server < 0 ) {
+			return null;
+		}
+		int share = path.indexOf( '/', server + 1 );
+		if ( share < 0 ) {
+			return null;
+		}
+		return path.substring( 0, share + 1 );
+	}
+
+	/**
+	 * @return the cached conversion for the path's share, one that isn't converted if the NMT couldn't convert the path itself, or null
+	 *         if the NMT has to be asked
+	 */
+	public synchronized Share get( String path ) {
+		String share = getShare( path );
+		if ( share == null ) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		Share cached = get( share, now );
+		return cached == null ? get( path, now ) : cached;
+	}
+
+	private Share get( String key, long now ) {
+		Share cached = entries.get( key );
+		if ( cached != null && cached.expires < now ) {
+			entries.remove( key );
+			cached = null;
+		}
+		return cached;
+	}
+
+	/**
+	 * Records what the NMT converted a path to, null if it couldn't.
+	 */
+	public synchronized void put( String path, String convertedPath ) {
+		String share = getShare( path );
+		if ( share == null ) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if ( convertedPath == null ) {
+			entries.put( path, new Share( share, null, now + negativeTimeToLive ) );
+			return;
+		}
+
+		// Only a conversion that keeps the rest of the path as it was tells us where the share is
+		String rest = path.substring( share.length() );
+		if ( convertedPath.endsWith( rest ) ) {
+			entries.put( share, new Share( share, convertedPath.substring( 0, convertedPath.length() - rest.length() ), now + timeToLive ) );
+		}
+	}
+
+	/**
+	 * Forgets the path's share and the path itself, for when playing something converted with it failed.
+	 */
+	public synchronized void invalidate( String path ) {
+		String share = getShare( path );
+		if ( share != null ) {
+			entries.remove( share );
+			entries.remove( path );
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public static class Share {
+		private String share;
+		private String convertedShare;
+		private long expires;
+
+		private Share( String share, String convertedShare, long expires ) {
+			this.share = share;
+			this.convertedShare = convertedShare;
+			this.expires = expires;
+		}
+
+		/**
+		 * @return false if the NMT couldn't convert paths on this share
+		 */
+		public boolean isConverted() {
+			return convertedShare != null;
+		}
+
+		public String convert( String path ) {
+			return convertedShare == null ? null : convertedShare + path.substring( share.length() );
+		}
+	}
+}
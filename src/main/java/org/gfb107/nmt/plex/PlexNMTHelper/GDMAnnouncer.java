@@ -1,28 +1,72 @@
 package org.gfb107.nmt.plex.PlexNMTHelper;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+/**
+ * Answers GDM searches for the players this helper drives, and announces them with HELLO every so often so controllers find them
+ * without searching. Replies are encoded once per player and sent from reused packets, searches are recognised by comparing bytes, and
+ * each address gets a limited number of replies in a given time, so a controller that searches in a loop can't keep us busy.
+ */
 public class GDMAnnouncer implements Runnable {
 
 	private Logger logger = Logger.getLogger( GDMAnnouncer.class.getName() );
 	private InetAddress gdmAddress = null;
 	private InetAddress myAddress = null;
 	private static final int announcePort = 32412;
-	private String announceMessage = null;
-	private boolean stop = false;
+	private static final int helloPort = 32413;
+	private static final byte[] searchPrefix = "M-SEARCH * HTTP/1.".getBytes();
+
+	// Each address gets this many replies per window, the rest of its searches are ignored
+	private static final int maximumReplies = 5;
+	private static final long replyWindow = 5000;
+	private static final int maximumSources = 256;
+
+	private List< byte[] > announceMessages = new CopyOnWriteArrayList< byte[] >();
+	private List< DatagramPacket > helloPackets = new CopyOnWriteArrayList< DatagramPacket >();
+	private List< DatagramPacket > byePackets = new CopyOnWriteArrayList< DatagramPacket >();
+	private volatile MulticastSocket announceSocket = null;
+	private volatile boolean stop = false;
+	private long ignored = 0;
+
+	private Map< InetAddress, long[] > sources = new LinkedHashMap< InetAddress, long[] >( 16, 0.75f, true ) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry< InetAddress, long[] > eldest ) {
+			return size() > maximumSources;
+		}
+	};
 
-	public GDMAnnouncer( String name, String clientId, InetAddress address, int port ) {
+	public GDMAnnouncer( InetAddress address ) {
 		myAddress = address;
-		StringBuilder sb = new StringBuilder( "HTTP/1.0 200 OK\r\n" );
+		try {
+			gdmAddress = InetAddress.getByName( "239.0.0.250" );
+		} catch ( UnknownHostException e ) {
+			ExceptionLogger.log( logger, e );
+		}
+	}
+
+	public GDMAnnouncer( String name, String clientId, InetAddress address, int port ) {
+		this( address );
+		addPlayer( name, clientId, port );
+	}
+
+	public void addPlayer( String name, String clientId, int port ) {
+		StringBuilder sb = new StringBuilder();
 		sb.append( "Content-Type: plex/media-player\r\n" );
 		sb.append( "Resource-Identifier: " + clientId + "\r\n" );
 		// sb.append( "Machine-Identifier: " + clientId + "\r\n" );
@@ -41,54 +85,133 @@ public class GDMAnnouncer implements Runnable {
 
 		sb.append( "\r\n" );
 
-		announceMessage = sb.toString();
+		String headers = sb.toString();
+		String announceMessage = "HTTP/1.0 200 OK\r\n" + headers;
 		logger.finer( announceMessage );
+		announceMessages.add( announceMessage.getBytes() );
+
+		byte[] hello = ("HELLO * HTTP/1.0\r\n" + headers).getBytes();
+		helloPackets.add( new DatagramPacket( hello, hello.length, gdmAddress, helloPort ) );
+		byte[] bye = ("BYE * HTTP/1.0\r\n" + headers).getBytes();
+		byePackets.add( new DatagramPacket( bye, bye.length, gdmAddress, helloPort ) );
+
+		hello();
 	}
 
 	public void setStop( boolean stop ) {
 		this.stop = stop;
 	}
 
+	/**
+	 * Announces every player now and then every interval.
+	 */
+	public void startAnnouncements( ScheduledExecutorService scheduler, long interval ) {
+		scheduler.scheduleWithFixedDelay( new Runnable() {
+			public void run() {
+				hello();
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS );
+	}
+
+	private void hello() {
+		send( helloPackets );
+	}
+
+	private void send( List< DatagramPacket > packets ) {
+		MulticastSocket socket = announceSocket;
+		if ( socket == null ) {
+			return;
+		}
+		for ( DatagramPacket packet : packets ) {
+			try {
+				socket.send( packet );
+			} catch ( IOException ex ) {
+				ExceptionLogger.log( logger, ex );
+			}
+		}
+	}
+
+	private static boolean isSearch( DatagramPacket packet ) {
+		if ( packet.getLength() < searchPrefix.length ) {
+			return false;
+		}
+		byte[] data = packet.getData();
+		int offset = packet.getOffset();
+		for ( int i = 0; i < searchPrefix.length; ++i ) {
+			if ( data[offset + i] != searchPrefix[i] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean allowReply( InetAddress source, long now ) {
+		long[] window = sources.get( source );
+		if ( window == null || now - window[0] > replyWindow ) {
+			sources.put( source, new long[] { now, 1 } );
+			return true;
+		}
+		if ( window[1] < maximumReplies ) {
+			window[1]++;
+			return true;
+		}
+		if ( ++ignored % 100 == 1 ) {
+			logger.warning( "Ignoring searches from " + source.getHostAddress() + ", " + ignored + " ignored so far" );
+		}
+		return false;
+	}
+
 	public void run() {
 		logger.fine( "GDMAnnouncer running" );
 
-		MulticastSocket announceSocket = null;
 		try {
-			gdmAddress = InetAddress.getByName( "239.0.0.250" );
 			SocketAddress socketAddress = new InetSocketAddress( myAddress, announcePort );
-			announceSocket = new MulticastSocket( socketAddress );
+			MulticastSocket socket = new MulticastSocket( socketAddress );
 
-			announceSocket.joinGroup( gdmAddress );
+			socket.joinGroup( gdmAddress );
+			// Wake up now and then to notice being stopped
+			socket.setSoTimeout( 1000 );
+			announceSocket = socket;
 		} catch ( IOException e ) {
 			ExceptionLogger.log( logger, e );
+			return;
 		}
 
+		hello();
+
 		byte[] buf = new byte[1000];
+		DatagramPacket pollPacket = new DatagramPacket( buf, buf.length );
+		DatagramPacket announcePacket = new DatagramPacket( buf, 0 );
 
 		while ( !stop ) {
 			try {
-				DatagramPacket pollPacket = new DatagramPacket( buf, buf.length );
-				announceSocket.receive( pollPacket );
-
-				BufferedReader reader = new BufferedReader( new InputStreamReader( new ByteArrayInputStream( pollPacket.getData() ) ) );
-
-				String line = reader.readLine();
-				logger.finer( line );
-				while ( reader.readLine() != null ) {}
-
-				if ( !line.contains( "M-SEARCH * HTTP/1." ) ) {
+				pollPacket.setLength( buf.length );
+				try {
+					announceSocket.receive( pollPacket );
+				} catch ( SocketTimeoutException ex ) {
 					continue;
 				}
 
-				DatagramPacket announcePacket = new DatagramPacket( announceMessage.getBytes(), announceMessage.length(), pollPacket.getAddress(),
-						pollPacket.getPort() );
+				if ( !isSearch( pollPacket ) ) {
+					continue;
+				}
+				if ( !allowReply( pollPacket.getAddress(), System.currentTimeMillis() ) ) {
+					continue;
+				}
 
-				announceSocket.send( announcePacket );
+				// One reply per player, so a controller sees every device this helper drives
+				announcePacket.setAddress( pollPacket.getAddress() );
+				announcePacket.setPort( pollPacket.getPort() );
+				for ( byte[] announceMessage : announceMessages ) {
+					announcePacket.setData( announceMessage );
+					announceSocket.send( announcePacket );
+				}
 			} catch ( Exception ex ) {
 				ExceptionLogger.log( logger, ex );
 			}
 		}
 
+		send( byePackets );
 		announceSocket.close();
 	}
 }
@@ -7,6 +7,12 @@ import java.io.InputStreamReader;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import nu.xom.ParsingException;
@@ -19,7 +25,36 @@ public class GDMDiscovery {
 	private static final int discoveryPort = 32414;
 	private static final String discoveryMessage = "M-SEARCH * HTTP/1.1\r\n\r\n";
 
+	private static final long defaultWindow = 3000;
+
+	/**
+	 * @return the server that answered first within the default window, or null if none answered
+	 */
 	public PlexServer discover() throws ValidityException, IllegalStateException, ParsingException {
+		List< PlexServer > servers = discoverAll( defaultWindow );
+		return servers.isEmpty() ? null : servers.get( 0 );
+	}
+
+	/**
+	 * Told about each server as soon as it answers, while discovery waits out the rest of the window.
+	 */
+	public interface Listener {
+		void found( PlexServer server );
+	}
+
+	/**
+	 * Sends one discovery packet and collects every server that answers within the window. A server answering on several addresses
+	 * is only listed once.
+	 *
+	 * @return the servers, quickest to answer first
+	 */
+	public List< PlexServer > discoverAll( long window ) {
+		return discoverAll( window, null );
+	}
+
+	public List< PlexServer > discoverAll( long window, Listener listener ) {
+		List< PlexServer > servers = new ArrayList< PlexServer >();
+		Set< String > seen = new HashSet< String >();
 
 		DatagramSocket discoverySocket = null;
 		try {
@@ -31,46 +66,80 @@ public class GDMDiscovery {
 
 			logger.info( "Sending discovery packet" );
 
+			long sent = System.nanoTime();
+			long deadline = System.currentTimeMillis() + window;
 			discoverySocket.send( discoveryPacket );
 
 			byte[] buf = new byte[4 * 1024];
 			DatagramPacket responsePacket = new DatagramPacket( buf, buf.length );
 
-			logger.info( "Waiting for discovery response" );
-			discoverySocket.receive( responsePacket );
-
-			String serverAddress = responsePacket.getAddress().getHostAddress();
-			int serverPort = 0;
-			String serverName = null;
-
-			BufferedReader rdr = new BufferedReader( new InputStreamReader( new ByteArrayInputStream( responsePacket.getData() ) ) );
-			String line = rdr.readLine();
-
-			if ( line.equals( "HTTP/1.0 200 OK" ) ) {
-				while ( (line = rdr.readLine()) != null ) {
-					String[] parts = line.split( ":" );
-					if ( parts.length != 2 ) {
-						continue;
-					}
-					String name = parts[0];
-					String value = parts[1].substring( 1 );
-					if ( name.equals( "Port" ) ) {
-						serverPort = Integer.parseInt( value );
-					} else if ( name.equals( "Name" ) ) {
-						serverName = value;
+			logger.info( "Waiting " + window + "ms for discovery responses" );
+			while ( true ) {
+				long remaining = deadline - System.currentTimeMillis();
+				if ( remaining <= 0 ) {
+					break;
+				}
+				discoverySocket.setSoTimeout( (int) remaining );
+				try {
+					responsePacket.setLength( buf.length );
+					discoverySocket.receive( responsePacket );
+				} catch ( SocketTimeoutException ex ) {
+					break;
+				}
+				long latency = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - sent );
+
+				PlexServer server = parse( responsePacket );
+				if ( server != null && seen.add( server.getIdentifier() ) ) {
+					logger.info( "Found PLEX server '" + server.getName() + "' at " + server.getAddress() + ':' + server.getPort() + " in "
+							+ latency + "ms" );
+					servers.add( server );
+					if ( listener != null ) {
+						listener.found( server );
 					}
 				}
-
-				logger.info( "Found PLEX server '" + serverName + "' at " + serverAddress + ':' + serverPort );
-
-				return new PlexServer( serverAddress, serverPort, serverName );
 			}
-
-			discoverySocket.close();
 		} catch ( IOException e ) {
 			e.printStackTrace();
+		} finally {
+			if ( discoverySocket != null ) {
+				discoverySocket.close();
+			}
 		}
-		return null;
+		return servers;
+	}
+
+	private PlexServer parse( DatagramPacket responsePacket ) throws IOException {
+		String serverAddress = responsePacket.getAddress().getHostAddress();
+		int serverPort = 0;
+		String serverName = null;
+		String identifier = null;
+
+		BufferedReader rdr = new BufferedReader( new InputStreamReader( new ByteArrayInputStream( responsePacket.getData(), 0,
+				responsePacket.getLength() ) ) );
+		String line = rdr.readLine();
+
+		if ( line == null || !line.equals( "HTTP/1.0 200 OK" ) ) {
+			return null;
+		}
+		while ( (line = rdr.readLine()) != null ) {
+			String[] parts = line.split( ":" );
+			if ( parts.length != 2 ) {
+				continue;
+			}
+			String name = parts[0];
+			String value = parts[1].substring( 1 );
+			if ( name.equals( "Port" ) ) {
+				serverPort = Integer.parseInt( value );
+			} else if ( name.equals( "Name" ) ) {
+				serverName = value;
+			} else if ( name.equals( "Resource-Identifier" ) ) {
+				identifier = value;
+			}
+		}
+
+		PlexServer server = new PlexServer( serverAddress, serverPort, serverName );
+		server.setIdentifier( identifier == null ? serverAddress + ':' + serverPort : identifier );
+		return server;
 	}
 
 }
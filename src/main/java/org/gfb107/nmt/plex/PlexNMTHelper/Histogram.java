@@ -0,0 +1,106 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram in microseconds. Buckets are log-linear: below 8 microseconds every microsecond has its own bucket, above that
+ * every power of two is split into 8 buckets, so any value is within 12.5% of its bucket's bounds, up to about 19 hours. Recording is
+ * a few arithmetic operations and atomic increments, with no locks and no allocation.
+ */
+public class Histogram {
+	private static final int subBucketBits = 3;
+	private static final int subBuckets = 1 << subBucketBits;
+	private static final int maximumExponent = 36;
+	private static final int bucketCount = (maximumExponent - subBucketBits + 2) * subBuckets;
+
+	private AtomicLongArray buckets = new AtomicLongArray( bucketCount );
+	private AtomicLong count = new AtomicLong();
+	private AtomicLong sum = new AtomicLong();
+	private AtomicLong max = new AtomicLong();
+
+	static int getIndex( long value ) {
+		if ( value < subBuckets ) {
+			return value < 0 ? 0 : (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros( value );
+		if ( exponent > maximumExponent ) {
+			return bucketCount - 1;
+		}
+		int subBucket = (int) (value >> (exponent - subBucketBits)) & (subBuckets - 1);
+		return (exponent - subBucketBits + 1) * subBuckets + subBucket;
+	}
+
+	static long getLowerBound( int index ) {
+		if ( index < subBuckets ) {
+			return index;
+		}
+		int exponent = index / subBuckets + subBucketBits - 1;
+		int subBucket = index % subBuckets;
+		return (long) (subBuckets + subBucket) << (exponent - subBucketBits);
+	}
+
+	static long getUpperBound( int index ) {
+		return index + 1 < bucketCount ? getLowerBound( index + 1 ) - 1 : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Records an elapsed time given in nanoseconds, typically the difference of two {@link System#nanoTime()} calls.
+	 */
+	public void recordNanos( long nanos ) {
+		record( TimeUnit.NANOSECONDS.toMicros( nanos ) );
+	}
+
+	/**
+	 * Records a value in microseconds.
+	 */
+	public void record( long micros ) {
+		buckets.incrementAndGet( getIndex( micros ) );
+		count.incrementAndGet();
+		sum.addAndGet( micros );
+		long current;
+		while ( micros > (current = max.get()) ) {
+			if ( max.compareAndSet( current, micros ) ) {
+				break;
+			}
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the total of every value recorded, in microseconds
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * @return the largest value recorded, in microseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the value, in microseconds, that the given fraction of recorded values are at or below; the upper bound of its bucket
+	 */
+	public long getPercentile( double fraction ) {
+		long total = count.get();
+		if ( total == 0 ) {
+			return 0;
+		}
+		long target = Math.max( 1, (long) Math.ceil( fraction * total ) );
+		long seen = 0;
+		for ( int i = 0; i < bucketCount; ++i ) {
+			seen += buckets.get( i );
+			if ( seen >= target ) {
+				return Math.min( getUpperBound( i ), max.get() );
+			}
+		}
+		return max.get();
+	}
+}
@@ -0,0 +1,132 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * A pooled, keep-alive HTTP client with bounded connections per route and default timeouts. Responses must be handed to
+ * {@link #release(CloseableHttpResponse)} so their connection goes back to the pool instead of being torn down.
+ */
+public class HttpTransport {
+	private Logger logger = Logger.getLogger( HttpTransport.class.getName() );
+
+	private String name;
+	private PoolingHttpClientConnectionManager connectionManager;
+	private CloseableHttpClient client;
+
+	private AtomicLong connectionsOpened = new AtomicLong();
+
+	public HttpTransport( String name, int maxTotal, int maxPerRoute, int connectTimeout, int socketTimeout ) {
+		this.name = name;
+
+		ConnectionSocketFactory plain = new CountingSocketFactory( PlainConnectionSocketFactory.getSocketFactory() );
+		connectionManager = new PoolingHttpClientConnectionManager( RegistryBuilder.< ConnectionSocketFactory > create()
+				.register( "http", plain ).register( "https", SSLConnectionSocketFactory.getSocketFactory() ).build() );
+		connectionManager.setMaxTotal( maxTotal );
+		connectionManager.setDefaultMaxPerRoute( maxPerRoute );
+
+		RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout( connectTimeout ).setSocketTimeout( socketTimeout )
+				.setConnectionRequestTimeout( connectTimeout ).build();
+
+		client = HttpClients.custom().setConnectionManager( connectionManager ).setDefaultRequestConfig( requestConfig )
+				.setKeepAliveStrategy( DefaultConnectionKeepAliveStrategy.INSTANCE ).build();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public CloseableHttpClient getClient() {
+		return client;
+	}
+
+	public PoolStats getStats() {
+		return connectionManager.getTotalStats();
+	}
+
+	/**
+	 * @return the number of TCP connections opened so far; in a steady state with keep-alive this shouldn't move
+	 */
+	public long getConnectionsOpened() {
+		return connectionsOpened.get();
+	}
+
+	/**
+	 * Periodically drops connections the other end has expired or that have been idle too long, and logs the pool statistics.
+	 */
+	public void startMaintenance( ScheduledExecutorService scheduler, final long idleTime ) {
+		scheduler.scheduleWithFixedDelay( new Runnable() {
+			public void run() {
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections( idleTime, TimeUnit.MILLISECONDS );
+				if ( logger.isLoggable( Level.FINE ) ) {
+					logger.fine( HttpTransport.this.toString() );
+				}
+			}
+		}, idleTime, idleTime, TimeUnit.MILLISECONDS );
+	}
+
+	public void close() throws IOException {
+		client.close();
+	}
+
+	/**
+	 * Consumes whatever is left of the response body and closes the response, so the connection can be reused.
+	 */
+	public static void release( CloseableHttpResponse response ) throws IOException {
+		if ( response != null ) {
+			try {
+				EntityUtils.consumeQuietly( response.getEntity() );
+			} finally {
+				response.close();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		PoolStats stats = getStats();
+		return name + " pool: leased=" + stats.getLeased() + ", available=" + stats.getAvailable() + ", pending=" + stats.getPending() + ", max="
+				+ stats.getMax() + ", opened=" + connectionsOpened.get();
+	}
+
+	private class CountingSocketFactory implements ConnectionSocketFactory {
+		private ConnectionSocketFactory factory;
+
+		private CountingSocketFactory( ConnectionSocketFactory factory ) {
+			this.factory = factory;
+		}
+
+		public Socket createSocket( HttpContext context ) throws IOException {
+			return factory.createSocket( context );
+		}
+
+		public Socket connectSocket( int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+				InetSocketAddress localAddress, HttpContext context ) throws IOException {
+			Socket connected = factory.connectSocket( connectTimeout, socket, host, remoteAddress, localAddress, context );
+			connectionsOpened.incrementAndGet();
+			return connected;
+		}
+	}
+}
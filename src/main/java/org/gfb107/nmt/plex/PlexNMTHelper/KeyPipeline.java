@@ -0,0 +1,102 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import nu.xom.Element;
+
+import org.gfb107.nmt.plex.PlexNMTHelper.CommandScheduler.Lane;
+
+/**
+ * Delivers remote control keys to an NMT without holding the controller's request open. A key is acknowledged as soon as it's queued
+ * in the interactive lane, which carries the keys out in the order they came, one after another as fast as the device answers, over
+ * the NMT's pooled keep-alive connection. A burst that gets too far ahead of the device has its newest keys dropped, so a held down
+ * d-pad doesn't keep the cursor moving long after it's let go.
+ */
+public class KeyPipeline {
+	private static Logger logger = Logger.getLogger( KeyPipeline.class.getName() );
+
+	private static final Metrics.Family< AtomicLong > sentKeys = Metrics.counters( "nmt_keys_total", "device", "Keys sent to the NMT" );
+	private static final Metrics.Family< AtomicLong > droppedKeys = Metrics.counters( "nmt_keys_dropped_total", "device",
+			"Keys dropped because too many were waiting for the NMT" );
+	private static final Metrics.Family< AtomicLong > failedKeys = Metrics.counters( "nmt_keys_failed_total", "device",
+			"Keys the NMT didn't accept or didn't answer" );
+
+	private NetworkedMediaTank nmt;
+	private int limit;
+	private AtomicInteger waiting = new AtomicInteger();
+	private AtomicLong sent;
+	private AtomicLong dropped;
+	private AtomicLong failed;
+
+	/**
+	 * @param limit how many keys may be waiting for the NMT before more are dropped
+	 */
+	public KeyPipeline( NetworkedMediaTank nmt, String name, int limit ) {
+		this.nmt = nmt;
+		this.limit = limit;
+		sent = sentKeys.get( name );
+		dropped = droppedKeys.get( name );
+		failed = failedKeys.get( name );
+	}
+
+	/**
+	 * Queues a key, as send_key takes it: the key and the module it's for, e.g. "flashlite".
+	 *
+	 * @return false if the key was dropped
+	 */
+	public boolean send( final String key, final String module ) {
+		if ( key == null ) {
+			return true;
+		}
+		if ( waiting.incrementAndGet() > limit ) {
+			waiting.decrementAndGet();
+			dropped.incrementAndGet();
+			logger.fine( "Dropping key " + key + ", " + limit + " keys are waiting for the NMT" );
+			return false;
+		}
+		submit( new Callable< Void >() {
+			public Void call() throws Exception {
+				waiting.decrementAndGet();
+				deliver( key, module );
+				return null;
+			}
+		} );
+		return true;
+	}
+
+	public int getWaiting() {
+		return waiting.get();
+	}
+
+	/**
+	 * Queues the delivery on the NMT's interactive lane, behind any key already there.
+	 */
+	protected void submit( Callable< Void > delivery ) {
+		nmt.getScheduler().submit( Lane.INTERACTIVE, delivery );
+	}
+
+	/**
+	 * @return true if the NMT accepted the key
+	 */
+	protected boolean sendKey( String key, String module ) throws Exception {
+		Element result = nmt.runCommand( "system", "send_key", key, module );
+		Element returnValue = result.getFirstChildElement( "returnValue" );
+		return returnValue == null || returnValue.getValue().equals( "0" );
+	}
+
+	private void deliver( String key, String module ) {
+		sent.incrementAndGet();
+		try {
+			if ( !sendKey( key, module ) ) {
+				failed.incrementAndGet();
+				logger.warning( "The NMT didn't accept key " + key );
+			}
+		} catch ( Exception ex ) {
+			failed.incrementAndGet();
+			ExceptionLogger.log( logger, ex );
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for the helper's I/O, written out for /metrics in the Prometheus text format. Each metric is a
+ * family with at most two labels, declared once where it's used; looking up a single label that's already there doesn't allocate, so
+ * the lookup and recording can both be done on hot paths. Metrics with two labels, usually the device and something else, are looked
+ * up once and kept by whatever records them.
+ */
+public class Metrics {
+	// A family takes at most this many label values, the rest are counted under "other". Each device of a fleet has a couple of dozen
+	// routes, so there's room for a good few devices.
+	static final int maximumLabels = 512;
+
+	// Separates the values of a family with two labels in its children's keys
+	private static final char separator = '\0';
+
+	private static List< Family< ? > > families = new CopyOnWriteArrayList< Family< ? > >();
+
+	public static Family< Histogram > histograms( String name, String labelName, String help ) {
+		return add( new Family< Histogram >( name, labelName == null ? new String[0] : new String[] { labelName }, help ) {
+			@Override
+			protected Histogram create() {
+				return new Histogram();
+			}
+		} );
+	}
+
+	public static Family< Histogram > histograms( String name, String firstLabelName, String secondLabelName, String help ) {
+		return add( new Family< Histogram >( name, new String[] { firstLabelName, secondLabelName }, help ) {
+			@Override
+			protected Histogram create() {
+				return new Histogram();
+			}
+		} );
+	}
+
+	public static Family< AtomicLong > counters( String name, String labelName, String help ) {
+		return add( new Family< AtomicLong >( name, labelName == null ? new String[0] : new String[] { labelName }, help ) {
+			@Override
+			protected AtomicLong create() {
+				return new AtomicLong();
+			}
+		} );
+	}
+
+	public static Family< AtomicLong > counters( String name, String firstLabelName, String secondLabelName, String help ) {
+		return add( new Family< AtomicLong >( name, new String[] { firstLabelName, secondLabelName }, help ) {
+			@Override
+			protected AtomicLong create() {
+				return new AtomicLong();
+			}
+		} );
+	}
+
+	private static < T > Family< T > add( Family< T > family ) {
+		families.add( family );
+		return family;
+	}
+
+	/**
+	 * Writes every metric. Histograms are written as summaries in seconds, with the median, 90th, 99th and 99.9th percentiles, and
+	 * their maximums as a gauge of their own named with _max on the end.
+	 */
+	public static void write( StringBuilder sb ) {
+		for ( Family< ? > family : families ) {
+			family.write( sb );
+		}
+	}
+
+	/**
+	 * Writes the help and type of a metric that's written with {@link #writeGauge}, once ahead of all its values.
+	 * 
+	 * @param type gauge, or counter for a running total kept elsewhere
+	 */
+	public static void writeHeader( StringBuilder sb, String name, String type, String help ) {
+		sb.append( "# HELP " ).append( name ).append( ' ' ).append( help ).append( '\n' );
+		sb.append( "# TYPE " ).append( name ).append( ' ' ).append( type ).append( '\n' );
+	}
+
+	/**
+	 * Writes a single value, for figures like queue depths that are read rather than recorded. The values of a metric have to be
+	 * written together, after its {@link #writeHeader header}.
+	 */
+	public static void writeGauge( StringBuilder sb, String name, String labelName, String labelValue, double value ) {
+		sb.append( name );
+		if ( labelName != null ) {
+			sb.append( '{' ).append( labelName ).append( "=\"" ).append( escape( labelValue ) ).append( "\"}" );
+		}
+		sb.append( ' ' ).append( value ).append( '\n' );
+	}
+
+	public static void writeGauge( StringBuilder sb, String name, String firstLabelName, String firstLabelValue, String secondLabelName,
+			String secondLabelValue, double value ) {
+		sb.append( name ).append( '{' ).append( firstLabelName ).append( "=\"" ).append( escape( firstLabelValue ) ).append( "\"," );
+		sb.append( secondLabelName ).append( "=\"" ).append( escape( secondLabelValue ) ).append( "\"} " ).append( value ).append( '\n' );
+	}
+
+	private static String escape( String value ) {
+		return value.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ).replace( "\n", "\\n" );
+	}
+
+	public static abstract class Family< T > {
+		private static final double[] quantiles = { 0.5, 0.9, 0.99, 0.999 };
+
+		private String name;
+		private String[] labelNames;
+		private String help;
+		private Map< String, T > children = new ConcurrentHashMap< String, T >();
+
+		private Family( String name, String[] labelNames, String help ) {
+			this.name = name;
+			this.labelNames = labelNames;
+			this.help = help;
+		}
+
+		protected abstract T create();
+
+		/**
+		 * @return the metric for the label value, which is created the first time
+		 */
+		public T get( String labelValue ) {
+			if ( labelNames.length > 1 ) {
+				throw new IllegalArgumentException( name + " has " + labelNames.length + " labels" );
+			}
+			return lookup( labelValue == null ? "" : labelValue );
+		}
+
+		/**
+		 * @return the metric for the two label values, which is created the first time
+		 */
+		public T get( String firstLabelValue, String secondLabelValue ) {
+			if ( labelNames.length != 2 ) {
+				throw new IllegalArgumentException( name + " has " + labelNames.length + " labels" );
+			}
+			String first = firstLabelValue == null ? "" : firstLabelValue;
+			return lookup( first + separator + (secondLabelValue == null ? "" : secondLabelValue) );
+		}
+
+		private T lookup( String key ) {
+			T child = children.get( key );
+			if ( child == null ) {
+				synchronized ( this ) {
+					child = children.get( key );
+					if ( child == null ) {
+						if ( children.size() >= maximumLabels ) {
+							key = labelNames.length > 1 ? "other" + separator + "other" : "other";
+							child = children.get( key );
+							if ( child != null ) {
+								return child;
+							}
+						}
+						child = create();
+						children.put( key, child );
+					}
+				}
+			}
+			return child;
+		}
+
+		private void write( StringBuilder sb ) {
+			if ( children.isEmpty() ) {
+				return;
+			}
+			boolean histogram = children.values().iterator().next() instanceof Histogram;
+			writeHeader( sb, name, histogram ? "summary" : "counter", help );
+			StringBuilder labels = new StringBuilder();
+			for ( Map.Entry< String, T > entry : children.entrySet() ) {
+				setLabels( labels, entry.getKey() );
+				if ( histogram ) {
+					Histogram h = (Histogram) entry.getValue();
+					for ( double quantile : quantiles ) {
+						sb.append( name ).append( '{' ).append( labels );
+						sb.append( "quantile=\"" ).append( quantile ).append( "\"} " ).append( h.getPercentile( quantile ) / 1e6 ).append( '\n' );
+					}
+					writeValue( sb, name + "_sum", labels, h.getSum() / 1e6 );
+					writeValue( sb, name + "_count", labels, h.getCount() );
+				} else {
+					writeValue( sb, name, labels, ((AtomicLong) entry.getValue()).get() );
+				}
+			}
+
+			// A summary can't carry its maximum, so it's a family of its own
+			if ( histogram ) {
+				writeHeader( sb, name + "_max", "gauge", help + ", the longest" );
+				for ( Map.Entry< String, T > entry : children.entrySet() ) {
+					setLabels( labels, entry.getKey() );
+					writeValue( sb, name + "_max", labels, ((Histogram) entry.getValue()).getMax() / 1e6 );
+				}
+			}
+		}
+
+		private void setLabels( StringBuilder labels, String key ) {
+			labels.setLength( 0 );
+			String[] values = labelNames.length > 1 ? key.split( String.valueOf( separator ), -1 ) : new String[] { key };
+			for ( int i = 0; i < labelNames.length; ++i ) {
+				labels.append( labelNames[i] ).append( "=\"" ).append( escape( values[i] ) ).append( "\"," );
+			}
+		}
+
+		// The labels are as written ahead of the quantile, with a trailing comma
+		private static void writeValue( StringBuilder sb, String name, StringBuilder labels, double value ) {
+			sb.append( name );
+			if ( labels.length() > 0 ) {
+				sb.append( '{' ).append( labels, 0, labels.length() - 1 ).append( '}' );
+			}
+			sb.append( ' ' ).append( value ).append( '\n' );
+		}
+	}
+}
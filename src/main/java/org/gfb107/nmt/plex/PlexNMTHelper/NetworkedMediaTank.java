@@ -4,6 +4,12 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,34 +19,62 @@ import nu.xom.ParsingException;
 import nu.xom.ValidityException;
 
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.gfb107.nmt.plex.PlexNMTHelper.CommandScheduler.Lane;
 
 public class NetworkedMediaTank {
 	private Logger logger = Logger.getLogger( NetworkedMediaTank.class.getName() );
 	private String address;
+	private String host;
+	private int port = 8008;
 	private String name;
 
 	public static final String productName = "Plex NMT Helper";
 	public static final String productVersion = "1.0";
 
-	private String prefix;
-
 	private String macAddress;
 
-	private CloseableHttpClient client = HttpClients.createDefault();
+	private CloseableHttpClient client;
+
+	private CommandScheduler scheduler;
+
+	private static final int maxRetries = 3;
+
+	private static final Metrics.Family< Histogram > commandTimes = Metrics.histograms( "nmt_command_seconds", "device", "module",
+			"Time taken by the NMT to answer a command" );
+	private static final Metrics.Family< AtomicLong > commandTimeouts = Metrics.counters( "nmt_command_timeouts_total", "device",
+			"NMT commands that timed out" );
+
+	private Map< String, Histogram > moduleTimes = new ConcurrentHashMap< String, Histogram >();
+
+	// Shares stay mounted on the NMT, so conversions are kept for ten minutes, failures for half a minute
+	private ConvertedPathCache convertedPaths = new ConvertedPathCache( 256, 600000, 30000 );
 
 	public NetworkedMediaTank( String address, String name ) {
+		this( address, name, HttpClients.createDefault() );
+	}
+
+	public NetworkedMediaTank( String address, String name, CloseableHttpClient client ) {
 		this.address = address;
 		this.name = name;
+		this.client = client;
+		scheduler = new CommandScheduler( name );
 
-		prefix = "http://" + address + ":8008/";
+		// An NMT always listens on 8008, another port can be given as host:port, e.g. for a simulated device
+		host = address;
+		int colon = address.indexOf( ':' );
+		if ( colon > 0 && colon == address.lastIndexOf( ':' ) ) {
+			host = address.substring( 0, colon );
+			port = Integer.parseInt( address.substring( colon + 1 ) );
+		}
 	}
 
 	private URIBuilder getUriBuilder() {
-		return new URIBuilder().setScheme( "http" ).setHost( address ).setPort( 8008 );
+		return new URIBuilder().setScheme( "http" ).setHost( host ).setPort( port );
 	}
 
 	public String getAddress() {
@@ -62,35 +96,141 @@ public class NetworkedMediaTank {
 
 	public Element sendCommand( String module, String... args ) throws ClientProtocolException, IOException, ValidityException,
 			IllegalStateException, ParsingException, InterruptedException, URISyntaxException {
+		return sendCommand( Lane.INTERACTIVE, module, args );
+	}
+
+	public Element sendCommand( Lane lane, String module, String... args ) throws ClientProtocolException, IOException, ValidityException,
+			IllegalStateException, ParsingException, InterruptedException, URISyntaxException {
+		final String url = getUrl( module, args );
+		logger.finer( "Queueing " + url );
+
+		final Histogram histogram = getCommandTimes( module );
+		return await( scheduler.submit( lane, new Callable< Element >() {
+			public Element call() throws Exception {
+				return execute( histogram, url );
+			}
+		} ) );
+	}
+
+	/**
+	 * Sends a command straight away, for a command that's already running in its turn on the scheduler's thread and works out its
+	 * arguments only then, see {@link SeekCoalescer}.
+	 */
+	Element runCommand( String module, String... args ) throws ClientProtocolException, IOException, ValidityException,
+			IllegalStateException, ParsingException, InterruptedException, URISyntaxException {
+		return execute( getCommandTimes( module ), getUrl( module, args ) );
+	}
+
+	// The device's own histograms are kept here, so sending a command doesn't build a key to look one up
+	private Histogram getCommandTimes( String module ) {
+		Histogram histogram = moduleTimes.get( module );
+		if ( histogram == null ) {
+			histogram = commandTimes.get( name, module );
+			moduleTimes.put( module, histogram );
+		}
+		return histogram;
+	}
+
+	private Element execute( Histogram histogram, String url ) throws ClientProtocolException, IOException, ValidityException,
+			IllegalStateException, ParsingException, InterruptedException {
+		long start = System.nanoTime();
+		try {
+			return execute( url );
+		} finally {
+			histogram.recordNanos( System.nanoTime() - start );
+		}
+	}
+
+	/**
+	 * Sends a status command such as get_current_vod_info and decodes the response into the given status, which may be reused.
+	 */
+	public NmtStatus getStatus( Lane lane, final NmtStatus status, String module, String... args ) throws ClientProtocolException,
+			IOException, ValidityException, IllegalStateException, ParsingException, InterruptedException, URISyntaxException {
+		final String url = getUrl( module, args );
+		logger.finer( "Queueing " + url );
+
+		final Histogram histogram = getCommandTimes( module );
+		return await( scheduler.submit( lane, new Callable< NmtStatus >() {
+			public NmtStatus call() throws Exception {
+				logger.finer( "Getting " + url );
+				long start = System.nanoTime();
+				CloseableHttpResponse httpResponse = client.execute( new HttpGet( url ) );
+				try {
+					status.decode( httpResponse.getEntity().getContent() );
+				} finally {
+					HttpTransport.release( httpResponse );
+					histogram.recordNanos( System.nanoTime() - start );
+				}
+				return status;
+			}
+		} ) );
+	}
+
+	private String getUrl( String module, String... args ) throws URISyntaxException {
 		URIBuilder uriBuilder = getUriBuilder();
 		uriBuilder.setPath( "/" + module );
 		for ( int i = 0; i < args.length; i++ ) {
 			uriBuilder.setParameter( "arg" + i, args[i] );
 		}
 
-		String url = uriBuilder.build().toString().replace( "+", "%20" ).replace( "%2F", "/" );
+		return uriBuilder.build().toString().replace( "+", "%20" ).replace( "%2F", "/" );
+	}
+
+	private < T > T await( Future< T > future ) throws IOException, ParsingException, InterruptedException {
+		try {
+			return future.get();
+		} catch ( ExecutionException ex ) {
+			Throwable cause = ex.getCause();
+			if ( cause instanceof IOException ) {
+				throw (IOException) cause;
+			} else if ( cause instanceof ParsingException ) {
+				throw (ParsingException) cause;
+			} else if ( cause instanceof InterruptedException ) {
+				throw (InterruptedException) cause;
+			} else if ( cause instanceof RuntimeException ) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException( cause );
+		}
+	}
+
+	private Element execute( String url ) throws ClientProtocolException, IOException, ValidityException, IllegalStateException,
+			ParsingException, InterruptedException {
 		logger.finer( "Getting " + url );
 
 		Builder builder = new Builder();
 		Element response;
+		int retries = 0;
 		while ( true ) {
 
 			try {
-				response = builder.build( client.execute( new HttpGet( url ) ).getEntity().getContent() ).getRootElement();
+				CloseableHttpResponse httpResponse = client.execute( new HttpGet( url ) );
+				try {
+					response = builder.build( httpResponse.getEntity().getContent() ).getRootElement();
+				} finally {
+					HttpTransport.release( httpResponse );
+				}
 				if ( logger.isLoggable( Level.FINER ) ) {
 					logger.finer( "Response was " + response.toXML() );
 				}
 				break;
 			} catch ( SocketTimeoutException ex ) {
+				commandTimeouts.get( name ).incrementAndGet();
+				if ( ++retries > maxRetries ) {
+					throw ex;
+				}
 				logger.warning( "Request timed out, will retry" );
 				Thread.sleep( 1000 );
 			}
 		}
 
-		Thread.sleep( 100 );
 		return response;
 	}
 
+	public CommandScheduler getScheduler() {
+		return scheduler;
+	}
+
 	public String sendKey( String key, String module ) throws ClientProtocolException, IOException, ValidityException, IllegalStateException,
 			ParsingException, InterruptedException, URISyntaxException {
 		if ( key != null ) {
@@ -105,15 +245,20 @@ public class NetworkedMediaTank {
 		// return URLEncoder.encode( text, "utf-8" ).replace( "+", "%20" );
 	}
 
-	public void play( Playable playable, int time ) throws ClientProtocolException, ValidityException, IllegalStateException,
+	/**
+	 * @return true if the NMT accepted the file
+	 */
+	public boolean play( Playable playable, int time ) throws ClientProtocolException, ValidityException, IllegalStateException,
 			UnsupportedEncodingException, IOException, ParsingException, InterruptedException, URISyntaxException {
-
+		Element result;
 		if ( playable.getType() == Video.type ) {
 			// playFile = fix( playFile ).replace( "%2F", "/" );
-			sendCommand( "playback", "start_vod", playable.getTitle(), playable.getPlayFile(), "show", Integer.toString( time / 1000 ) );
+			result = sendCommand( "playback", "start_vod", playable.getTitle(), playable.getPlayFile(), "show", Integer.toString( time / 1000 ) );
 		} else {
-			sendCommand( "playback", "start_aod", playable.getTitle(), playable.getPlayFile(), "show" );
+			result = sendCommand( "playback", "start_aod", playable.getTitle(), playable.getPlayFile(), "show" );
 		}
+		Element returnValue = result.getFirstChildElement( "returnValue" );
+		return returnValue == null || returnValue.getValue().equals( "0" );
 	}
 
 	public String getConvertedPath( String path ) throws ClientProtocolException, ValidityException, IllegalStateException, IOException,
@@ -121,12 +266,28 @@ public class NetworkedMediaTank {
 		if ( path.startsWith( "http://" ) || path.contains( "/opt/sybhttpd/localhost.drives/" ) ) {
 			return path;
 		}
+
+		ConvertedPathCache.Share share = convertedPaths.get( path );
+		if ( share != null ) {
+			logger.finer( "Using cached conversion for " + path );
+			return share.convert( path );
+		}
+
+		String convertedPath = null;
 		Element result = sendCommand( "file_operation", "list_user_storage_file", path, "0", "0", "false", "false", "false", "" );
 		if ( result.getFirstChildElement( "returnValue" ).getValue().equals( "0" ) ) {
-			return result.getFirstChildElement( "response" ).getFirstChildElement( "convertPath" ).getValue();
+			convertedPath = result.getFirstChildElement( "response" ).getFirstChildElement( "convertPath" ).getValue();
 		}
+		convertedPaths.put( path, convertedPath );
 
-		return null;
+		return convertedPath;
+	}
+
+	/**
+	 * Forgets how the share of the given path converts, so the next conversion asks the NMT again.
+	 */
+	public void invalidateConvertedPath( String path ) {
+		convertedPaths.invalidate( path );
 	}
 
 }
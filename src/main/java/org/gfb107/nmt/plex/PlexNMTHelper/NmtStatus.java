@@ -0,0 +1,255 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The few fields the now playing monitor needs from a get_current_vod_info or get_current_aod_info response. NMT responses are small
+ * flat documents, so instead of building a document the bytes are scanned for the wanted elements and their text is pulled straight
+ * into the fields. The object and its buffer are reused from poll to poll, and the full path string is only rebuilt when it changes.
+ */
+public class NmtStatus {
+	private static final Charset utf8 = Charset.forName( "UTF-8" );
+
+	private static final byte[] returnValueTag = "returnValue".getBytes( utf8 );
+	private static final byte[] fullPathTag = "fullPath".getBytes( utf8 );
+	private static final byte[] currentStatusTag = "currentStatus".getBytes( utf8 );
+	private static final byte[] currentTimeTag = "currentTime".getBytes( utf8 );
+	private static final byte[] totalTimeTag = "totalTime".getBytes( utf8 );
+	private static final byte[] play = "play".getBytes( utf8 );
+	private static final byte[] pause = "pause".getBytes( utf8 );
+
+	private byte[] buffer = new byte[2048];
+	private int length = 0;
+
+	private byte[] lastFullPathBytes = new byte[256];
+	private int lastFullPathLength = -1;
+	private String lastFullPath = null;
+
+	private int returnValue;
+	private String fullPath;
+	private String state;
+	private int currentTime;
+	private int totalTime;
+
+	public void reset() {
+		returnValue = -1;
+		fullPath = null;
+		state = null;
+		currentTime = 0;
+		totalTime = 0;
+	}
+
+	public void decode( InputStream in ) throws IOException {
+		length = 0;
+		int count;
+		while ( (count = in.read( buffer, length, buffer.length - length )) > 0 ) {
+			length += count;
+			if ( length == buffer.length ) {
+				buffer = Arrays.copyOf( buffer, buffer.length * 2 );
+			}
+		}
+		decode( buffer, length );
+	}
+
+	public void decode( byte[] data, int length ) {
+		reset();
+		int i = 0;
+		while ( (i = indexOf( data, length, '<', i )) >= 0 ) {
+			int nameStart = i + 1;
+			if ( nameStart >= length ) {
+				break;
+			}
+			byte first = data[nameStart];
+			if ( first == '/' || first == '?' || first == '!' ) {
+				i = nameStart;
+				continue;
+			}
+
+			int nameEnd = nameStart;
+			while ( nameEnd < length && data[nameEnd] != '>' && data[nameEnd] != '/' && data[nameEnd] > ' ' ) {
+				nameEnd++;
+			}
+			int close = indexOf( data, length, '>', nameEnd );
+			if ( close < 0 ) {
+				break;
+			}
+
+			int textStart = close + 1;
+			int textEnd = data[close - 1] == '/' ? textStart : indexOf( data, length, '<', textStart );
+			if ( textEnd < 0 ) {
+				break;
+			}
+
+			if ( matches( data, nameStart, nameEnd, returnValueTag ) ) {
+				returnValue = parseInt( data, textStart, textEnd, -1 );
+			} else if ( matches( data, nameStart, nameEnd, fullPathTag ) ) {
+				fullPath = getFullPath( data, textStart, textEnd );
+			} else if ( matches( data, nameStart, nameEnd, currentStatusTag ) ) {
+				state = getState( data, textStart, textEnd );
+			} else if ( matches( data, nameStart, nameEnd, currentTimeTag ) ) {
+				currentTime = parseInt( data, textStart, textEnd, 0 ) * 1000;
+			} else if ( matches( data, nameStart, nameEnd, totalTimeTag ) ) {
+				totalTime = parseInt( data, textStart, textEnd, 0 ) * 1000;
+			}
+
+			i = textStart;
+		}
+	}
+
+	private static int indexOf( byte[] data, int length, char c, int from ) {
+		for ( int i = from; i < length; ++i ) {
+			if ( data[i] == c ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean matches( byte[] data, int start, int end, byte[] name ) {
+		if ( end - start != name.length ) {
+			return false;
+		}
+		for ( int i = 0; i < name.length; ++i ) {
+			if ( data[start + i] != name[i] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int parseInt( byte[] data, int start, int end, int defaultValue ) {
+		while ( start < end && data[start] <= ' ' ) {
+			start++;
+		}
+		while ( end > start && data[end - 1] <= ' ' ) {
+			end--;
+		}
+		if ( start == end ) {
+			return defaultValue;
+		}
+		boolean negative = data[start] == '-';
+		int i = negative ? start + 1 : start;
+		int value = 0;
+		for ( ; i < end; ++i ) {
+			int digit = data[i] - '0';
+			if ( digit < 0 || digit > 9 ) {
+				return defaultValue;
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	private static String getState( byte[] data, int start, int end ) {
+		while ( start < end && data[start] <= ' ' ) {
+			start++;
+		}
+		while ( end > start && data[end - 1] <= ' ' ) {
+			end--;
+		}
+		if ( matches( data, start, end, play ) ) {
+			return "playing";
+		} else if ( matches( data, start, end, pause ) ) {
+			return "paused";
+		}
+		return decodeText( data, start, end );
+	}
+
+	// The same file is reported on every poll, so keep the last path and only build a new string when the bytes differ
+	private String getFullPath( byte[] data, int start, int end ) {
+		int count = end - start;
+		if ( lastFullPath != null && count == lastFullPathLength ) {
+			int i = 0;
+			while ( i < count && data[start + i] == lastFullPathBytes[i] ) {
+				i++;
+			}
+			if ( i == count ) {
+				return lastFullPath;
+			}
+		}
+		if ( lastFullPathBytes.length < count ) {
+			lastFullPathBytes = new byte[count];
+		}
+		System.arraycopy( data, start, lastFullPathBytes, 0, count );
+		lastFullPathLength = count;
+		lastFullPath = decodeText( data, start, end );
+		return lastFullPath;
+	}
+
+	private static String decodeText( byte[] data, int start, int end ) {
+		String text = new String( data, start, end - start, utf8 );
+		if ( text.indexOf( '&' ) < 0 ) {
+			return text;
+		}
+		StringBuilder sb = new StringBuilder( text.length() );
+		int i = 0;
+		while ( i < text.length() ) {
+			char c = text.charAt( i );
+			int semicolon = c == '&' ? text.indexOf( ';', i ) : -1;
+			if ( semicolon < 0 ) {
+				sb.append( c );
+				i++;
+				continue;
+			}
+			String entity = text.substring( i + 1, semicolon );
+			if ( entity.equals( "amp" ) ) {
+				sb.append( '&' );
+			} else if ( entity.equals( "lt" ) ) {
+				sb.append( '<' );
+			} else if ( entity.equals( "gt" ) ) {
+				sb.append( '>' );
+			} else if ( entity.equals( "quot" ) ) {
+				sb.append( '"' );
+			} else if ( entity.equals( "apos" ) ) {
+				sb.append( '\'' );
+			} else if ( entity.startsWith( "#x" ) ) {
+				sb.appendCodePoint( Integer.parseInt( entity.substring( 2 ), 16 ) );
+			} else if ( entity.startsWith( "#" ) ) {
+				sb.appendCodePoint( Integer.parseInt( entity.substring( 1 ) ) );
+			} else {
+				sb.append( text, i, semicolon + 1 );
+			}
+			i = semicolon + 1;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return true if the NMT reported something playing (a return value of 0)
+	 */
+	public boolean isPlaying() {
+		return returnValue == 0;
+	}
+
+	public int getReturnValue() {
+		return returnValue;
+	}
+
+	public String getFullPath() {
+		return fullPath;
+	}
+
+	/**
+	 * @return the NMT's status translated to a Plex timeline state
+	 */
+	public String getState() {
+		return state;
+	}
+
+	/**
+	 * @return the current position in milliseconds
+	 */
+	public int getCurrentTime() {
+		return currentTime;
+	}
+
+	/**
+	 * @return the total time in milliseconds
+	 */
+	public int getTotalTime() {
+		return totalTime;
+	}
+}
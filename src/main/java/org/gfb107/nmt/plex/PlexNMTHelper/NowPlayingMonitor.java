@@ -1,12 +1,29 @@
 package org.gfb107.nmt.plex.PlexNMTHelper;
 
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
-import nu.xom.Element;
+import nu.xom.ParsingException;
+import nu.xom.ValidityException;
+
+import org.apache.http.client.ClientProtocolException;
+import org.gfb107.nmt.plex.PlexNMTHelper.CommandScheduler.Lane;
 
 public class NowPlayingMonitor implements Runnable {
 	private Logger logger = Logger.getLogger( NowPlayingMonitor.class.getName() );
 
+	// Poll quickly right after a command and near the end of an item, slowly during steady playback, and not at all when idle
+	private static final long fastInterval = 250;
+	private static final long steadyInterval = 2000;
+	private static final long expediteWindow = 3000;
+	private static final long endWindow = 10000;
+
 	public NowPlayingMonitor( PlexNMTHelper helper, NetworkedMediaTank nmt ) {
 		this.helper = helper;
 		this.nmt = nmt;
@@ -15,24 +32,91 @@ public class NowPlayingMonitor implements Runnable {
 	private PlexNMTHelper helper;
 	private NetworkedMediaTank nmt;
 
+	private ScheduledExecutorService scheduler = null;
+	private ScheduledFuture< ? > future = null;
+	private boolean polling = false;
+	private boolean woken = false;
 	private boolean stop = false;
+	private volatile long expediteUntil = 0;
+	private long due = 0;
+
+	private static final Metrics.Family< Histogram > tickLateness = Metrics.histograms( "monitor_tick_lateness_seconds", "device",
+			"How much later than scheduled the now playing monitor looked at the NMT" );
+	private static final Metrics.Family< Histogram > pollTimes = Metrics.histograms( "monitor_poll_seconds", "device",
+			"Time taken to look at the NMT and update timelines" );
+
+	/**
+	 * Starts polling on a thread of its own, a look at the NMT blocks until it answers and a device that doesn't should only delay
+	 * its own monitor.
+	 */
+	public synchronized void start( long initialDelay ) {
+		logger.info( "NowPlayingMonitor started for " + nmt.getName() );
+		scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+			public Thread newThread( Runnable runnable ) {
+				Thread thread = new Thread( runnable, "NowPlayingMonitor-" + nmt.getName() );
+				thread.setDaemon( true );
+				return thread;
+			}
+		} );
+		schedule( initialDelay );
+	}
 
-	public void setStop( boolean stop ) {
+	public synchronized void setStop( boolean stop ) {
 		this.stop = stop;
+		if ( stop && future != null ) {
+			future.cancel( false );
+			future = null;
+			logger.info( "NowPlayingMonitor ending for " + nmt.getName() );
+		}
 	}
 
-	private Video lastVideo = null;
-
-	public Video getLastVideo() {
-		return lastVideo;
+	/**
+	 * Polls the NMT as soon as possible and then quickly for a few seconds, because a command was just sent to it. Also resumes
+	 * polling if the monitor was idle.
+	 */
+	public synchronized void wake() {
+		expediteUntil = System.currentTimeMillis() + expediteWindow;
+		if ( polling ) {
+			woken = true;
+		} else if ( scheduler != null ) {
+			schedule( 0 );
+		}
 	}
 
-	private Track lastTrack = null;
+	private synchronized void schedule( long delay ) {
+		if ( stop ) {
+			return;
+		}
+		if ( future != null ) {
+			future.cancel( false );
+		}
+		due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( delay );
+		future = scheduler.schedule( this, delay, TimeUnit.MILLISECONDS );
+	}
 
-	public Track getLastTrack() {
-		return lastTrack;
+	private long getDelay() {
+		Playable playable = getCurrent();
+		if ( playable == null ) {
+			return -1;
+		}
+		if ( System.currentTimeMillis() < expediteUntil ) {
+			return fastInterval;
+		}
+		Playable.Progress progress = playable.getProgress();
+		int duration = progress.getDuration();
+		if ( "playing".equals( progress.getState() ) && duration > 0 && duration - progress.getCurrentTime() < endWindow ) {
+			return fastInterval;
+		}
+		return steadyInterval;
 	}
 
+	private NmtStatus videoStatus = new NmtStatus();
+	private NmtStatus audioStatus = new NmtStatus();
+
+	// Only touched by the monitor's own runs, the helper's threads see them through the published playback state
+	private Video lastVideo = null;
+	private Track lastTrack = null;
+
 	private Playable getCurrent() {
 		PlayQueue queue = helper.getQueue();
 		if ( queue == null ) {
@@ -51,141 +135,141 @@ public class NowPlayingMonitor implements Runnable {
 
 	@Override
 	public void run() {
-		logger.info( "NowPlayingMonitor started" );
-		while ( !stop ) {
-			try {
-				Thread.sleep( 1000 ); // sleep 1 second between iterations
-
-				Playable playable = getCurrent();
-				if ( playable == null ) {
-					logger.fine( "Queue finished" );
-					lastVideo = null;
-					lastTrack = null;
-					continue;
+		long start = System.nanoTime();
+		synchronized ( this ) {
+			polling = true;
+			woken = false;
+			tickLateness.get( nmt.getName() ).recordNanos( start - due );
+		}
+		try {
+			poll();
+		} catch ( Exception ex ) {
+			ExceptionLogger.log( logger, ex );
+		} finally {
+			pollTimes.get( nmt.getName() ).recordNanos( System.nanoTime() - start );
+			helper.setNowPlaying( lastVideo, lastTrack );
+			helper.updatePoll();
+			synchronized ( this ) {
+				polling = false;
+				long delay = woken ? 0 : getDelay();
+				if ( delay >= 0 ) {
+					schedule( delay );
+				} else {
+					logger.fine( "Nothing queued, NowPlayingMonitor for " + nmt.getName() + " is idle" );
+					future = null;
 				}
+			}
+		}
+	}
 
-				String state = null;
-
-				Element container = nmt.sendCommand( "playback", "get_current_vod_info" );
-				String returnValue = container.getFirstChildElement( "returnValue" ).getValue();
-
-				if ( returnValue.equals( "0" ) ) {
-					logger.fine( "A video is playing" );
-					Element response = container.getFirstChildElement( "response" );
-					String fullPath = response.getFirstChildElement( "fullPath" ).getValue();
-					state = response.getFirstChildElement( "currentStatus" ).getValue();
-					if ( state.equals( "play" ) ) {
-						state = "playing";
-					} else if ( state.equals( "pause" ) ) {
-						state = "paused";
-					}
-
-					int currentTime = Integer.parseInt( response.getFirstChildElement( "currentTime" ).getValue() ) * 1000;
-					int totalTime = Integer.parseInt( response.getFirstChildElement( "totalTime" ).getValue() ) * 1000;
-
-					boolean sameVideo = playable.getPlayFile().equals( fullPath );
-
-					if ( lastVideo != null && !sameVideo ) {
-						logger.finer( "It's a different video than last time" );
-						lastVideo.setState( "stopped" );
-						helper.updateTimeline( lastVideo );
-						lastVideo = null;
-					}
-
-					if ( lastTrack != null ) {
-						logger.fine( "There was a track playing last time" );
-						lastTrack.setState( "stopped" );
-						helper.updateTimeline( lastTrack );
-						lastTrack = null;
-					}
-
-					if ( sameVideo ) {
-						playable.setCurrentTime( currentTime );
-						if ( playable.getDuration() == 0 ) {
-							playable.setDuration( totalTime );
-						}
-						playable.setState( state );
-
-						lastVideo = (Video) playable;
-						helper.updateTimeline( lastVideo );
-
-						continue;
-					}
-				} else {
-					if ( lastVideo != null ) {
-						logger.fine( "There was a video playing last time" );
-						playable = getNext();
-						if ( playable != null ) {
-							helper.play( 0, null );
-						}
-						lastVideo.setState( "stopped" );
-						helper.updateTimeline( lastVideo );
-						if ( playable != null && playable.getType() == Video.type ) {
-							lastVideo = (Video) playable;
-						}
-					}
-
-					container = nmt.sendCommand( "playback", "get_current_aod_info" );
-					returnValue = container.getFirstChildElement( "returnValue" ).getValue();
-
-					state = null;
-
-					if ( returnValue.equals( "0" ) ) {
-						logger.fine( "There's a track playing" );
-
-						Element response = container.getFirstChildElement( "response" );
-						String fullPath = response.getFirstChildElement( "fullPath" ).getValue();
-
-						state = response.getFirstChildElement( "currentStatus" ).getValue();
-						int currentTime = Integer.parseInt( response.getFirstChildElement( "currentTime" ).getValue() ) * 1000;
-						int totalTime = Integer.parseInt( response.getFirstChildElement( "totalTime" ).getValue() ) * 1000;
-
-						boolean sameTrack = playable.getPlayFile().equals( fullPath );
-
-						if ( lastTrack != null && !sameTrack ) {
-							logger.fine( "It's a different track than last time" );
-							lastTrack.setState( "stopped" );
-							helper.updateTimeline( lastTrack );
-						}
-
-						if ( sameTrack ) {
-							if ( state.equals( "play" ) ) {
-								state = "playing";
-							} else if ( state.equals( "pause" ) ) {
-								state = "paused";
-							}
-
-							playable.setCurrentTime( currentTime );
-							if ( playable.getDuration() == 0 ) {
-								playable.setDuration( totalTime );
-							}
-
-							playable.setState( state );
-							lastTrack = (Track) playable;
-							helper.updateTimeline( lastTrack );
-
-							continue;
-						}
-					} else {
-						if ( lastTrack != null ) {
-							logger.fine( "No track this time, but there was a track last time" );
-							playable = getNext();
-							if ( playable != null ) {
-								helper.play( 0, null );
-							}
-							lastTrack.setState( "stopped" );
-							helper.updateTimeline( lastTrack );
-							if ( playable != null && playable.getType() == Track.type ) {
-								lastTrack = (Track) playable;
-							}
-							lastTrack = (Track) playable;
-						}
-					}
+	private void poll() throws ClientProtocolException, ValidityException, IllegalStateException, IOException, ParsingException,
+			InterruptedException, URISyntaxException {
+		Playable playable = getCurrent();
+		if ( playable == null ) {
+			logger.fine( "Queue finished" );
+			lastVideo = null;
+			lastTrack = null;
+			return;
+		}
+
+		// When music is queued and no video was playing, skip the video status and ask for the audio status alone
+		boolean checkVideo = playable.getType() == Video.type || lastVideo != null;
+
+		if ( checkVideo ) {
+			nmt.getStatus( Lane.BACKGROUND, videoStatus, "playback", "get_current_vod_info" );
+		}
+
+		if ( checkVideo && videoStatus.isPlaying() ) {
+			logger.fine( "A video is playing" );
+			String fullPath = videoStatus.getFullPath();
+
+			boolean sameVideo = playable.getPlayFile().equals( fullPath );
+
+			if ( lastVideo != null && !sameVideo ) {
+				logger.finer( "It's a different video than last time" );
+				lastVideo.setState( "stopped" );
+				helper.updateTimeline( lastVideo );
+				lastVideo = null;
+			}
+
+			if ( lastTrack != null ) {
+				logger.fine( "There was a track playing last time" );
+				lastTrack.setState( "stopped" );
+				helper.updateTimeline( lastTrack );
+				lastTrack = null;
+			}
+
+			if ( sameVideo ) {
+				int duration = playable.getDuration();
+				playable.setProgress( videoStatus.getState(), videoStatus.getCurrentTime(), duration == 0 ? videoStatus.getTotalTime() : duration );
+
+				lastVideo = (Video) playable;
+				helper.updateTimeline( lastVideo );
+			}
+			return;
+		}
+
+		if ( lastVideo != null ) {
+			logger.fine( "There was a video playing last time" );
+			playable = getNext();
+			if ( playable != null ) {
+				helper.play( 0, null );
+			}
+			lastVideo.setState( "stopped" );
+			helper.updateTimeline( lastVideo );
+			if ( playable != null && playable.getType() == Video.type ) {
+				lastVideo = (Video) playable;
+			}
+			if ( playable == null ) {
+				return;
+			}
+		}
+
+		nmt.getStatus( Lane.BACKGROUND, audioStatus, "playback", "get_current_aod_info" );
+
+		if ( audioStatus.isPlaying() ) {
+			logger.fine( "There's a track playing" );
+
+			// A track that hasn't been played yet has no play file, its URL is only worked out when it is
+			boolean sameTrack = playable.getPlayFile() != null && playable.getPlayFile().equals( audioStatus.getFullPath() );
+
+			if ( lastTrack != null && !sameTrack ) {
+				logger.fine( "It's a different track than last time" );
+				lastTrack.setState( "stopped" );
+				helper.updateTimeline( lastTrack );
+			}
+
+			if ( sameTrack ) {
+				int duration = playable.getDuration();
+				playable.setProgress( audioStatus.getState(), audioStatus.getCurrentTime(), duration == 0 ? audioStatus.getTotalTime() : duration );
+				lastTrack = (Track) playable;
+				helper.updateTimeline( lastTrack );
+			}
+		} else if ( lastTrack != null ) {
+			if ( !checkVideo ) {
+				// The track may have been replaced by a video started on the NMT itself, which shouldn't be interrupted
+				nmt.getStatus( Lane.BACKGROUND, videoStatus, "playback", "get_current_vod_info" );
+				if ( videoStatus.isPlaying() ) {
+					logger.fine( "A video replaced the track that was playing" );
+					lastTrack.setState( "stopped" );
+					helper.updateTimeline( lastTrack );
+					lastTrack = null;
+					return;
 				}
-			} catch ( Exception ex ) {
-				ExceptionLogger.log( logger, ex );
+			}
+
+			logger.fine( "No track this time, but there was a track last time" );
+			playable = getNext();
+			if ( playable != null ) {
+				helper.play( 0, null );
+			}
+			lastTrack.setState( "stopped" );
+			helper.updateTimeline( lastTrack );
+			if ( playable != null && playable.getType() == Track.type ) {
+				lastTrack = (Track) playable;
+			} else {
+				lastTrack = null;
 			}
 		}
-		logger.info( "NowPlayingMonitor ending" );
 	}
 }
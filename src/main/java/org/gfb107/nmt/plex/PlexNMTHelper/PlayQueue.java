@@ -1,10 +1,14 @@
 package org.gfb107.nmt.plex.PlexNMTHelper;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class PlayQueue {
 	private String id;
+	private String playQueueId;
+	private int version;
 	private int itemOffset;
 	List< Playable > playables = new ArrayList< Playable >();
 
@@ -13,21 +17,109 @@ public class PlayQueue {
 		this.itemOffset = itemOffset;
 	}
 
-	public void add( Playable playable ) {
+	public String getId() {
+		return id;
+	}
+
+	public synchronized String getPlayQueueId() {
+		return playQueueId;
+	}
+
+	public synchronized int getVersion() {
+		return version;
+	}
+
+	public synchronized void setVersion( String playQueueId, int version ) {
+		this.playQueueId = playQueueId;
+		this.version = version;
+	}
+
+	public synchronized void add( Playable playable ) {
 		playables.add( playable );
 	}
 
-	public Playable getCurrent() {
+	public synchronized int size() {
+		return playables.size();
+	}
+
+	public synchronized Playable getCurrent() {
 		if ( itemOffset < playables.size() ) {
 			return playables.get( itemOffset );
 		}
 		return null;
 	}
 
-	public Playable next() {
+	public synchronized int getItemOffset() {
+		return itemOffset;
+	}
+
+	/**
+	 * Makes the item with the given key current, the one at the offset if it has that key, for picking up a queue after a restart.
+	 *
+	 * @return false if the queue no longer holds the item
+	 */
+	public synchronized boolean select( String key, int offset ) {
+		if ( offset >= 0 && offset < playables.size() && playables.get( offset ).getKey().equals( key ) ) {
+			itemOffset = offset;
+			return true;
+		}
+		for ( int i = 0; i < playables.size(); ++i ) {
+			if ( playables.get( i ).getKey().equals( key ) ) {
+				itemOffset = i;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public synchronized Playable next() {
 		if ( itemOffset < playables.size() ) {
 			itemOffset++;
 		}
 		return getCurrent();
 	}
+
+	/**
+	 * Replaces the items with a newer version of the queue. Items that are still in the queue are kept as they are, so whatever is playing
+	 * carries on with its state and position, and stays current wherever it moved to. If the current item was removed, the server's
+	 * selected offset is used; if the queue had
+	 * finished, it stays where it was, ahead of any items added at the end.
+	 *
+	 * @return the number of items that weren't in the queue before
+	 */
+	public synchronized int merge( int version, List< Playable > items, int selectedOffset ) {
+		Map< String, Playable > existing = new HashMap< String, Playable >();
+		for ( Playable playable : playables ) {
+			if ( playable.getPlayQueueItemId() != null ) {
+				existing.put( playable.getPlayQueueItemId(), playable );
+			}
+		}
+
+		Playable current = getCurrent();
+		int offset = -1;
+		int added = 0;
+		List< Playable > merged = new ArrayList< Playable >( items.size() );
+		for ( Playable item : items ) {
+			Playable playable = existing.get( item.getPlayQueueItemId() );
+			if ( playable == null ) {
+				playable = item;
+				added++;
+			}
+			if ( playable == current ) {
+				offset = merged.size();
+			}
+			merged.add( playable );
+		}
+
+		playables = merged;
+		if ( offset >= 0 ) {
+			itemOffset = offset;
+		} else if ( current != null ) {
+			itemOffset = Math.min( selectedOffset, merged.size() );
+		} else {
+			itemOffset = Math.min( itemOffset, merged.size() );
+		}
+		this.version = version;
+		return added;
+	}
 }
@@ -9,18 +9,18 @@ public class Playable {
 		this.ratingKey = ratingKey;
 		this.title = title;
 		this.file = file;
-		this.duration = duration;
+		progress = new Progress( null, 0, duration );
 	}
 
-	private String containerKey;
+	// Read by the HTTP threads and the monitor, so whatever can change is published with a volatile write
+	private volatile String containerKey;
 	private String key;
 	private String ratingKey;
 	private String title;
-	private String file;
-	private String playFile;
-	private int duration;
-	private int currentTime;
-	private String state;
+	private volatile String file;
+	private volatile String playFile;
+	private volatile Progress progress;
+	private volatile String playQueueItemId;
 
 	public String getContainerKey() {
 		return containerKey;
@@ -30,6 +30,14 @@ public class Playable {
 		this.containerKey = containerKey;
 	}
 
+	public String getPlayQueueItemId() {
+		return playQueueItemId;
+	}
+
+	public void setPlayQueueItemId( String playQueueItemId ) {
+		this.playQueueItemId = playQueueItemId;
+	}
+
 	public String getKey() {
 		return key;
 	}
@@ -58,20 +66,33 @@ public class Playable {
 		this.playFile = playFile;
 	}
 
+	/**
+	 * @return the state, time and duration as they were last set together
+	 */
+	public Progress getProgress() {
+		return progress;
+	}
+
+	public synchronized void setProgress( String state, int time, int duration ) {
+		progress = new Progress( state, time, duration );
+	}
+
 	public int getDuration() {
-		return duration;
+		return progress.getDuration();
 	}
 
-	public void setDuration( int duration ) {
-		this.duration = duration;
+	public synchronized void setDuration( int duration ) {
+		Progress current = progress;
+		progress = new Progress( current.getState(), current.getCurrentTime(), duration );
 	}
 
 	public int getCurrentTime() {
-		return currentTime;
+		return progress.getCurrentTime();
 	}
 
-	public void setCurrentTime( int time ) {
-		this.currentTime = time;
+	public synchronized void setCurrentTime( int time ) {
+		Progress current = progress;
+		progress = new Progress( current.getState(), time, current.getDuration() );
 	}
 
 	private String location;
@@ -86,11 +107,40 @@ public class Playable {
 		return type;
 	}
 
-	public void setState( String state ) {
-		this.state = state;
+	public synchronized void setState( String state ) {
+		Progress current = progress;
+		progress = new Progress( state, current.getCurrentTime(), current.getDuration() );
 	}
 
 	public String getState() {
-		return state;
+		return progress.getState();
+	}
+
+	/**
+	 * Where playback of an item stands. Every change makes a new one, so a reader that takes the progress once sees a state, time and
+	 * duration that belong together, without locking.
+	 */
+	public static final class Progress {
+		private final String state;
+		private final int currentTime;
+		private final int duration;
+
+		public Progress( String state, int currentTime, int duration ) {
+			this.state = state;
+			this.currentTime = currentTime;
+			this.duration = duration;
+		}
+
+		public String getState() {
+			return state;
+		}
+
+		public int getCurrentTime() {
+			return currentTime;
+		}
+
+		public int getDuration() {
+			return duration;
+		}
 	}
 }
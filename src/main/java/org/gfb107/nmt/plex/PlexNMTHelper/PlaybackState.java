@@ -0,0 +1,40 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+/**
+ * What the helper is playing: the play queue, and the video and track the monitor last saw playing. It never changes once made; the
+ * helper publishes a new one through an atomic reference, so request threads read the queue and the playing items together without
+ * locking. The items' progress is published by the items themselves, see {@link Playable#getProgress()}.
+ */
+public final class PlaybackState {
+	public static final PlaybackState idle = new PlaybackState( null, null, null );
+
+	private final PlayQueue queue;
+	private final Video video;
+	private final Track track;
+
+	public PlaybackState( PlayQueue queue, Video video, Track track ) {
+		this.queue = queue;
+		this.video = video;
+		this.track = track;
+	}
+
+	public PlayQueue getQueue() {
+		return queue;
+	}
+
+	public Video getVideo() {
+		return video;
+	}
+
+	public Track getTrack() {
+		return track;
+	}
+
+	public PlaybackState withQueue( PlayQueue queue ) {
+		return queue == this.queue ? this : new PlaybackState( queue, video, track );
+	}
+
+	public PlaybackState withNowPlaying( Video video, Track track ) {
+		return video == this.video && track == this.track ? this : new PlaybackState( queue, video, track );
+	}
+}
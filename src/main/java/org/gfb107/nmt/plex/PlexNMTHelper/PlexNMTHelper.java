@@ -6,20 +6,33 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
@@ -38,7 +51,7 @@ import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.pool.PoolStats;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 import org.simpleframework.http.Path;
@@ -52,7 +65,7 @@ import org.simpleframework.transport.connect.Connection;
 import org.simpleframework.transport.connect.SocketConnection;
 
 public class PlexNMTHelper implements Container {
-	private static Logger logger = null;
+	private static Logger logger = Logger.getLogger( PlexNMTHelper.class.getName() );
 
 	public static void main( String[] args ) {
 		try {
@@ -65,6 +78,7 @@ public class PlexNMTHelper implements Container {
 			System.out.println( "Using " + loggingProperties.getAbsolutePath() );
 
 			logger = Logger.getLogger( PlexNMTHelper.class.getName() );
+			StartupTimer total = new StartupTimer( null, "total" );
 			String fileName = "PlexNMTHelper.properties";
 
 			if ( args.length == 1 ) {
@@ -89,70 +103,294 @@ public class PlexNMTHelper implements Container {
 			properties.load( reader );
 			reader.close();
 
-			InetAddress myAddress = PlexNMTHelper.getLocalHostLANAddress();
+			final InetAddress myAddress = PlexNMTHelper.getLocalHostLANAddress();
 
-			String nmtAddress = properties.getProperty( "nmtAddress" );
-			if ( nmtAddress == null ) {
-				logger.severe( "Missing property nmtAddress" );
-				return;
+			// A single device uses the unprefixed properties. For a fleet, list the device names in "devices" and prefix each
+			// device's properties with its name, e.g. "living.nmtAddress". Unprefixed properties serve as defaults.
+			String[] prefixes = { "" };
+			String devices = properties.getProperty( "devices" );
+			if ( devices != null && devices.trim().length() > 0 ) {
+				prefixes = devices.trim().split( "\\s*,\\s*" );
+				for ( int i = 0; i < prefixes.length; ++i ) {
+					prefixes[i] = prefixes[i] + '.';
+				}
 			}
 
-			String nmtName = properties.getProperty( "nmtName" );
-			if ( nmtName == null ) {
-				logger.severe( "Missing property nmtName" );
-				return;
+			List< DeviceConfig > configs = new ArrayList< DeviceConfig >();
+			for ( String prefix : prefixes ) {
+				DeviceConfig config = new DeviceConfig();
+
+				config.nmtAddress = getProperty( properties, prefix, "nmtAddress" );
+				if ( config.nmtAddress == null ) {
+					logger.severe( "Missing property " + prefix + "nmtAddress" );
+					return;
+				}
+
+				config.nmtName = getProperty( properties, prefix, "nmtName" );
+				if ( config.nmtName == null ) {
+					logger.severe( "Missing property " + prefix + "nmtName" );
+					return;
+				}
+
+				String temp = getProperty( properties, prefix, "port" );
+				if ( temp == null ) {
+					logger.severe( "Missing property " + prefix + "port" );
+					return;
+				}
+				config.port = Integer.parseInt( temp );
+
+				temp = getProperty( properties, prefix, "replacementConfig" );
+				if ( temp == null ) {
+					logger.severe( "Missing property " + prefix + "replacementConfig" );
+					return;
+				}
+				config.replacementConfig = new File( temp );
+
+				config.user = getProperty( properties, prefix, "user" );
+				config.password = getProperty( properties, prefix, "password" );
+
+				configs.add( config );
 			}
 
-			String temp = properties.getProperty( "port" );
-			if ( temp == null ) {
-				logger.severe( "Missing property port" );
-				return;
+			// Everything below is shared by all devices: the HTTP clients, the GDM announcer and the scheduler for the short timed work,
+			// such as poll timeouts, seek windows, journal syncs and HELLOs. Nothing on it waits for a device, each now playing monitor
+			// has a thread of its own, so a couple of threads do for any number of devices.
+			scheduler = Executors.newScheduledThreadPool( 2 );
+
+			int connectTimeout = getIntProperty( properties, "httpConnectTimeout", 5000 );
+			int socketTimeout = getIntProperty( properties, "httpSocketTimeout", 10000 );
+			int maxConnections = getIntProperty( properties, "httpMaxConnections", 50 );
+			transport = new HttpTransport( "plex", maxConnections, getIntProperty( properties, "httpMaxConnectionsPerRoute", 5 ), connectTimeout,
+					socketTimeout );
+			client = transport.getClient();
+			nmtTransport = new HttpTransport( "nmt", maxConnections, 2, connectTimeout, socketTimeout );
+			transport.startMaintenance( scheduler, 30000 );
+			nmtTransport.startMaintenance( scheduler, 30000 );
+
+			int timelineThreads = getIntProperty( properties, "timelineThreads", 4 );
+			int timelineTimeout = getIntProperty( properties, "timelineTimeout", 2000 );
+			timelinePublisher = new TimelinePublisher( timelineThreads, 100 * configs.size(), timelineTimeout );
+			timelinePollTimeout = getIntProperty( properties, "timelinePollTimeout", 20000 );
+			subscriberTimeout = getIntProperty( properties, "subscriberTimeout", 90000 );
+			seekWindow = getIntProperty( properties, "seekWindow", 250 );
+			serverTimelineHeartbeat = getIntProperty( properties, "serverTimelineHeartbeat", 10000 );
+			subscriberTimelineHeartbeat = getIntProperty( properties, "subscriberTimelineHeartbeat", 5000 );
+			String sessions = properties.getProperty( "sessionDirectory", "sessions" ).trim();
+			sessionDirectory = sessions.length() == 0 ? null : new File( sessions );
+			serverThreads = getIntProperty( properties, "serverThreads", 4 );
+
+			// Controllers find the devices through the announcer, so it's listening before anything else. Each device is added to it
+			// once it's ready.
+			final GDMAnnouncer announcer = new GDMAnnouncer( myAddress );
+			Thread announcerThread = new Thread( announcer );
+			announcerThread.start();
+			announcer.startAnnouncements( scheduler, getIntProperty( properties, "helloInterval", 60000 ) );
+
+			// Every PLEX server that answers is kept an eye on, and the devices are moved to another if theirs stops answering.
+			// Discovery runs alongside the devices starting, which only wait for it once they need a server.
+			serverMonitor = new ServerMonitor( new GDMDiscovery(), client, getIntProperty( properties, "serverCheckTimeout", 2000 ),
+					getIntProperty( properties, "discoveryWindow", 3000 ) );
+			startup.execute( new Runnable() {
+				public void run() {
+					StartupTimer timer = new StartupTimer( null, "discovery" );
+					serverMonitor.discover();
+					timer.stop();
+				}
+			} );
+			serverMonitor.start( getIntProperty( properties, "serverCheckInterval", 30000 ) );
+
+			List< Future< Boolean > > started = new ArrayList< Future< Boolean > >();
+			for ( final DeviceConfig config : configs ) {
+				started.add( startup.submit( new Callable< Boolean >() {
+					public Boolean call() {
+						if ( startDevice( config, myAddress, announcer ) ) {
+							return true;
+						}
+						retryDevice( config, myAddress, announcer );
+						return false;
+					}
+				} ) );
 			}
-			int port = Integer.parseInt( temp );
 
-			temp = properties.getProperty( "replacementConfig" );
-			if ( temp == null ) {
-				logger.severe( "Missing property replacementConfig" );
-				return;
+			int ready = 0;
+			for ( Future< Boolean > future : started ) {
+				if ( future.get() ) {
+					++ready;
+				}
 			}
+			logger.info( "Ready, " + ready + " of " + configs.size() + " devices started in " + total.stop() + "ms" );
+
+			// connection.close();
+
+		} catch ( Exception ex ) {
+			ExceptionLogger.log( logger, ex );
+			System.exit( -1 );
+		}
+	}
+
+	private static final long deviceRetryDelay = 60000;
+
+	private static ScheduledExecutorService scheduler = null;
+
+	// Runs the independent parts of starting up side by side, and later the work that can wait until a device is ready
+	private static ExecutorService startup = Executors.newCachedThreadPool();
+
+	private static TimelinePublisher timelinePublisher = null;
+
+	private static ServerMonitor serverMonitor = null;
+
+	// Threads per device running requests, Simple's own selector threads handle the connections
+	private static int serverThreads = 4;
+
+	private static long timelinePollTimeout = 20000;
+
+	// Controllers renew their subscriptions while they're open, one that hasn't been heard from for this long has gone
+	private static long subscriberTimeout = 90000;
+
+	// Seeks that come in this close together, as they do while a scrub bar is dragged, are sent as one
+	private static long seekWindow = 250;
+
+	// While something just plays on, the PLEX server and controllers are only told where it's got to this often
+	private static long serverTimelineHeartbeat = 10000;
+	private static long subscriberTimelineHeartbeat = 5000;
+
+	// Each device's session is journaled here, so a restart picks up what was playing; null to not keep them
+	private static File sessionDirectory = new File( "sessions" );
+
+	// Plex server, plex.tv and controller traffic share one pool, the NMTs another with fewer connections per device
+	private static HttpTransport transport = new HttpTransport( "plex", 50, 5, 5000, 10000 );
+	private static HttpTransport nmtTransport = new HttpTransport( "nmt", 50, 2, 5000, 10000 );
+
+	private static class DeviceConfig {
+		private String nmtAddress;
+		private String nmtName;
+		private int port;
+		private File replacementConfig;
+		private String user;
+		private String password;
+		private NetworkedMediaTank nmt;
+		private SessionJournal journal;
+	}
 
-			File replacementConfig = new File( temp );
+	private static String getProperty( Properties properties, String prefix, String name ) {
+		String value = properties.getProperty( prefix + name );
+		if ( value == null ) {
+			value = properties.getProperty( name );
+		}
+		return value;
+	}
 
-			NetworkedMediaTank nmt = new NetworkedMediaTank( nmtAddress, nmtName );
+	private static int getIntProperty( Properties properties, String name, int defaultValue ) {
+		String value = properties.getProperty( name );
+		return value == null ? defaultValue : Integer.parseInt( value.trim() );
+	}
+
+	// Only the wait is left to the scheduler, starting a device blocks on the network and would hold up everything else on it
+	private static void retryDevice( final DeviceConfig config, final InetAddress myAddress, final GDMAnnouncer announcer ) {
+		scheduler.schedule( new Runnable() {
+			public void run() {
+				startup.execute( new Runnable() {
+					public void run() {
+						if ( !startDevice( config, myAddress, announcer ) ) {
+							retryDevice( config, myAddress, announcer );
+						}
+					}
+				} );
+			}
+		}, deviceRetryDelay, TimeUnit.MILLISECONDS );
+	}
 
-			GDMDiscovery discovery = new GDMDiscovery();
-			PlexServer server = discovery.discover();
+	private static boolean startDevice( final DeviceConfig config, InetAddress myAddress, GDMAnnouncer announcer ) {
+		Connection connection = null;
+		try {
+			StartupTimer device = new StartupTimer( config.nmtName, "device" );
 
-			String clientId = "pch-" + nmt.getMacAddress().replace( ':', '-' );
+			// Kept from one attempt to the next, each has a command thread of its own
+			if ( config.nmt == null ) {
+				config.nmt = new NetworkedMediaTank( config.nmtAddress, config.nmtName, nmtTransport.getClient() );
+			}
+			final NetworkedMediaTank nmt = config.nmt;
+
+			StartupTimer timer = new StartupTimer( config.nmtName, "mac_address" );
+			final String clientId = "pch-" + nmt.getMacAddress().replace( ':', '-' );
+			timer.stop();
+
+			// Signing in to plex.tv only needs the client ID, so it goes on while the server's being found
+			Future< String > token = null;
+			if ( config.user != null & config.password != null ) {
+				token = startup.submit( new Callable< String >() {
+					public String call() throws Exception {
+						StartupTimer timer = new StartupTimer( nmt.getName(), "sign_in" );
+						try {
+							return getToken( config.user, config.password, clientId );
+						} finally {
+							timer.stop();
+						}
+					}
+				} );
+			}
 
+			timer = new StartupTimer( config.nmtName, "server" );
+			PlexServer discovered = serverMonitor.awaitCurrent();
+			timer.stop();
+			if ( discovered == null ) {
+				throw new IllegalStateException( "No PLEX server has been found" );
+			}
+
+			PlexServer server = new PlexServer( discovered.getAddress(), discovered.getPort(), discovered.getName() );
+			server.setIdentifier( discovered.getIdentifier() );
 			server.setClientId( clientId );
 			server.setClientName( nmt.getName() );
 
-			String user = properties.getProperty( "user" );
-			String password = properties.getProperty( "password" );
-			if ( user != null & password != null ) {
-				server.setToken( getToken( user, password, clientId ) );
+			if ( token != null ) {
+				try {
+					server.setToken( token.get() );
+				} catch ( ExecutionException ex ) {
+					throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+				}
 			}
 
-			PlexNMTHelper helper = new PlexNMTHelper( nmt, myAddress, port, server );
-			helper.initReplacements( replacementConfig );
+			PlexNMTHelper helper = new PlexNMTHelper( nmt, myAddress, config.port, server );
 			helper.setClientId( clientId );
+			helper.setPublisher( timelinePublisher );
+			if ( sessionDirectory != null ) {
+				// Also kept, a journal's file is only mapped once
+				if ( config.journal == null ) {
+					config.journal = new SessionJournal( new File( sessionDirectory, clientId + ".journal" ), 32768 );
+				}
+				helper.setJournal( config.journal );
+			}
+			helper.readReplacements( config.replacementConfig );
 
-			GDMAnnouncer announcer = new GDMAnnouncer( nmtName, clientId, myAddress, port );
-			Thread announcerThread = new Thread( announcer );
-			announcerThread.start();
+			// The port is taken before anything's started, so a device that can't have it is left with nothing running. Controllers
+			// are turned away until the helper has started.
+			timer = new StartupTimer( config.nmtName, "listener" );
+			connection = new SocketConnection( new ContainerServer( helper, serverThreads ) );
+			connection.connect( new InetSocketAddress( config.port ) );
+			timer.stop();
 
-			@SuppressWarnings("resource")
-			Connection connection = new SocketConnection( new ContainerServer( helper ) );
-			connection.connect( new InetSocketAddress( port ) );
+			helper.start( scheduler );
+			serverMonitor.register( server );
 
-			logger.info( "Ready" );
+			announcer.addPlayer( config.nmtName, clientId, config.port );
 
-			// connection.close();
+			logger.info( "Device " + config.nmtName + " ready on port " + config.port + " in " + device.stop() + "ms" );
 
+			// Playback converts paths itself as it needs them, these only get them cached ahead of time
+			helper.convertReplacements( startup );
+			return true;
 		} catch ( Exception ex ) {
+			if ( connection != null ) {
+				try {
+					connection.close();
+				} catch ( IOException e ) {
+					ExceptionLogger.log( logger, e );
+				}
+			}
+			logger.warning( "Unable to start device " + config.nmtName + " at " + config.nmtAddress + ", will retry in " + deviceRetryDelay / 1000
+					+ " seconds" );
 			ExceptionLogger.log( logger, ex );
-			System.exit( -1 );
+			return false;
 		}
 	}
 
@@ -178,9 +416,10 @@ public class PlexNMTHelper implements Container {
 
 	private Map< String, String > navigationMap = new HashMap< String, String >();
 	private Map< String, String > playbackMap = new HashMap< String, String >();
-	private Map< String, TimelineSubscriber > subscribers = new LinkedHashMap< String, TimelineSubscriber >();
+	private Map< String, Histogram > routeTimes = new HashMap< String, Histogram >();
+	private ConcurrentMap< String, TimelineSubscriber > subscribers = new ConcurrentHashMap< String, TimelineSubscriber >();
 
-	private static CloseableHttpClient client = HttpClients.createDefault();
+	private static CloseableHttpClient client = transport.getClient();
 
 	private Element successResponse = null;
 
@@ -192,6 +431,8 @@ public class PlexNMTHelper implements Container {
 		this.nmt = nmt;
 		this.server = server;
 		server.setClient( client );
+		keys = new KeyPipeline( nmt, nmt.getName(), maxQueuedKeys );
+		serverHeartbeat = new TimelineHeartbeat( nmt.getName(), "server", serverTimelineHeartbeat );
 
 		navigationMap.put( "moveRight", "right" );
 		navigationMap.put( "moveLeft", "left" );
@@ -208,15 +449,41 @@ public class PlexNMTHelper implements Container {
 		playbackMap.put( "skipPrevious", "prev" );
 		playbackMap.put( "repeat", "repeat" );
 
+		// Controllers can send any path at all, only the ones there's a handler for get a label of their own
+		List< String > routes = new ArrayList< String >();
+		for ( String name : new String[] { "/resources", "/metrics", "/player/timeline/subscribe", "/player/timeline/unsubscribe",
+				"/player/timeline/poll", "/player/playback/playMedia", "/player/playback/seekTo", "/player/playback/refreshPlayQueue",
+				"/player/playback/stepForward", "/player/playback/stepBack", "other" } ) {
+			routes.add( name );
+		}
+		for ( String name : playbackMap.keySet() ) {
+			routes.add( "/player/playback/" + name );
+		}
+		for ( String name : navigationMap.keySet() ) {
+			routes.add( "/player/navigation/" + name );
+		}
+		for ( String route : routes ) {
+			routeTimes.put( route, requestTimes.get( nmt.getName(), route ) );
+		}
+
 		successResponse = new Element( "Response" );
 		successResponse.addAttribute( new Attribute( "code", "200" ) );
 		successResponse.addAttribute( new Attribute( "status", "OK" ) );
 	}
 
 	private String clientId = null;
+	private TimelineWriter writer = null;
 
 	public void setClientId( String clientId ) {
 		this.clientId = clientId;
+		writer = null;
+	}
+
+	private TimelineWriter getWriter() {
+		if ( writer == null ) {
+			writer = new TimelineWriter( clientId, server );
+		}
+		return writer;
 	}
 
 	public NetworkedMediaTank getNmt() {
@@ -236,23 +503,24 @@ public class PlexNMTHelper implements Container {
 	}
 
 	public void handle( Request request, Response response ) {
-		PrintStream body = null;
 		try {
-			body = response.getPrintStream();
-
-			response.setDate( "Date", System.currentTimeMillis() );
-			response.setValue( "Server", "Plex" );
-			response.setValue( "Connection", "close" );
-			response.setContentType( "application/xml" );
-			response.setValue( "Accept-Ranges", "bytes" );
-			response.setValue( "Access-Control-Allow-Origin", "*" );
-			response.setValue(
-					"Access-Control-Allow-Headers",
-					"x-plex-version, x-plex-platform-version, x-plex-username, x-plex-client-identifier, x-plex-target-client-identifier, x-plex-device-name, x-plex-platform, x-plex-product, accept, x-plex-device" );
-			response.setValue( "Access-Control-Allow-Methods", "POST, GET, OPTIONS, HEAD" );
-			response.setInteger( "Access-Control-Max-Age", 1209600 );
-			response.setValue( "X-Plex-Client-Identifier", clientId );
-			response.setValue( "Access-Control-Expose-Headers", "X-Plex-Client-Identifier" );
+			setHeaders( response );
+
+			if ( !started ) {
+				response.setStatus( Status.SERVICE_UNAVAILABLE );
+				write( response, new byte[0] );
+				return;
+			}
+
+			// A long poll is answered later, from the scheduler, so this thread goes straight back to serving other requests. Waiters
+			// are kept by controller, one that doesn't say who it is gets an answer straight away.
+			long start = System.nanoTime();
+			String path = request.getPath().getPath();
+			if ( path.equals( "/player/timeline/poll" ) && "1".equals( request.getQuery().get( "wait" ) ) && poll != null
+					&& request.getValue( "X-Plex-Client-Identifier" ) != null ) {
+				longPoll( request, response, start );
+				return;
+			}
 
 			String message = null;
 			if ( request.getMethod().equals( "OPTIONS" ) ) {
@@ -261,31 +529,117 @@ public class PlexNMTHelper implements Container {
 				message = process( request, response );
 			}
 
-			if ( message == null ) {
-				message = "";
-				// message =
-				// "<?xml version=\"1.0\" encoding=\"UTF-8\" ?><Response code=\"200\" status=\"OK\" />";
-			}
-			logger.finer( "Responding with: " + message );
+			respond( response, message );
+			Histogram times = routeTimes.get( path );
+			(times == null ? routeTimes.get( "other" ) : times).recordNanos( System.nanoTime() - start );
+		} catch ( Exception e ) {
+			error( response, e );
+		}
+	}
 
-			response.setContentLength( message.length() );
-			body.print( message );
+	private static final Metrics.Family< Histogram > requestTimes = Metrics.histograms( "request_seconds", "device", "route",
+			"Time taken to handle a request from a controller" );
+
+	// The headers every response carries, apart from the date and content
+	private static final String[][] staticHeaders = {
+			{ "Server", "Plex" },
+			{ "Accept-Ranges", "bytes" },
+			{ "Access-Control-Allow-Origin", "*" },
+			{ "Access-Control-Allow-Headers",
+					"x-plex-version, x-plex-platform-version, x-plex-username, x-plex-client-identifier, x-plex-target-client-identifier, x-plex-device-name, x-plex-platform, x-plex-product, accept, x-plex-device" },
+			{ "Access-Control-Allow-Methods", "POST, GET, OPTIONS, HEAD" }, { "Access-Control-Max-Age", "1209600" },
+			{ "Access-Control-Expose-Headers", "X-Plex-Client-Identifier" } };
+
+	private static final Charset utf8 = Charset.forName( "UTF-8" );
+
+	// Connections are kept open (Simple closes them if the controller asks), so the content length has to be exact
+	private void setHeaders( Response response ) {
+		response.setDate( "Date", System.currentTimeMillis() );
+		response.setContentType( "application/xml" );
+		for ( String[] header : staticHeaders ) {
+			response.setValue( header[0], header[1] );
+		}
+		response.setValue( "X-Plex-Client-Identifier", clientId );
+	}
 
-		} catch ( Exception e ) {
-			e.printStackTrace();
+	private void respond( Response response, String message ) throws IOException {
+		if ( message == null ) {
+			message = "";
+			// message =
+			// "<?xml version=\"1.0\" encoding=\"UTF-8\" ?><Response code=\"200\" status=\"OK\" />";
+		}
+		logger.finer( "Responding with: " + message );
+
+		write( response, message.getBytes( utf8 ) );
+	}
+
+	private void write( Response response, byte[] content ) throws IOException {
+		response.setContentLength( content.length );
+		OutputStream body = response.getOutputStream();
+		body.write( content );
+		body.close();
+	}
+
+	private void error( Response response, Exception e ) {
+		e.printStackTrace();
+		try {
 			response.setStatus( Status.INTERNAL_SERVER_ERROR );
 			response.setContentType( "text/plain" );
-			String message = e.getMessage();
-			response.setContentLength( message.length() );
-			body.print( message );
+			write( response, String.valueOf( e.getMessage() ).getBytes( utf8 ) );
+		} catch ( IOException ex ) {
+			ExceptionLogger.log( logger, ex );
 		}
-		body.close();
 	}
 
-	private PlayQueue queue = null;
+	private void longPoll( Request request, final Response response, final long start ) {
+		final String commandId = request.getQuery().get( "commandID" );
+		String clientId = request.getValue( "X-Plex-Client-Identifier" );
+		updateSubscriber( clientId, null );
+		poll.poll( clientId, new TimelinePoll.Waiter() {
+			@Override
+			protected void answer( long version ) {
+				try {
+					respond( response, getPollTimeline( commandId ) );
+					routeTimes.get( "/player/timeline/poll" ).recordNanos( System.nanoTime() - start );
+				} catch ( Exception e ) {
+					error( response, e );
+				}
+			}
+		} );
+	}
+
+	// Controllers poll every second, so the rendered timeline is reused until the playing item changes
+	private String getPollTimeline( String commandId ) {
+		PlaybackState state = playback.get();
+		TimelineWriter.Template template = getWriter().getPollTemplate( state.getTrack(), state.getVideo() );
+		return template.toString( commandId, "", 0 );
+	}
+
+	private AtomicReference< PlaybackState > playback = new AtomicReference< PlaybackState >( PlaybackState.idle );
+
+	public PlaybackState getPlayback() {
+		return playback.get();
+	}
 
 	public PlayQueue getQueue() {
-		return queue;
+		return playback.get().getQueue();
+	}
+
+	private void setQueue( PlayQueue queue ) {
+		PlaybackState current;
+		do {
+			current = playback.get();
+		} while ( !playback.compareAndSet( current, current.withQueue( queue ) ) );
+	}
+
+	/**
+	 * Publishes the video and track the monitor saw playing, for the timelines and the step commands.
+	 */
+	public void setNowPlaying( Video video, Track track ) {
+		PlaybackState current;
+		do {
+			current = playback.get();
+		} while ( !playback.compareAndSet( current, current.withNowPlaying( video, track ) ) );
 	}
 
 	private String process( Request request, Response response ) throws ClientProtocolException, ValidityException, IllegalStateException,
@@ -307,7 +661,10 @@ public class PlexNMTHelper implements Container {
 				logger.finer( headerName + ": " + request.getValue( headerName ) );
 			}
 		}
-		if ( fullPath.equals( "/resources" ) ) {
+		if ( fullPath.equals( "/metrics" ) ) {
+			response.setContentType( "text/plain; version=0.0.4" );
+			return getMetrics();
+		} else if ( fullPath.equals( "/resources" ) ) {
 			return "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<MediaContainer><Player title=\"" + nmt.getName()
 					+ "\" protocol=\"plex\" protocolVersion=\"1\" machineIdentifier=\"" + clientId
 					+ "\" protocolCapabilities=\"navigation,playback,timeline\" deviceClass=\"stb\" product=\"" + NetworkedMediaTank.productName
@@ -317,24 +674,20 @@ public class PlexNMTHelper implements Container {
 			String commandId = query.get( "commandID" );
 			String address = request.getClientAddress().getAddress().getHostAddress();
 			String clientId = request.getValue( "X-Plex-Client-Identifier" );
+			if ( clientId == null ) {
+				clientId = address + ':' + port;
+			}
 
 			if ( name.equals( "subscribe" ) ) {
-				TimelineSubscriber subscriber = new TimelineSubscriber( commandId, address, port, server );
-				subscriber.setClient( this.clientId, nmt.getName() );
-				subscriber.setHttpClient( client );
-				subscribers.put( clientId, subscriber );
+				subscribe( clientId, commandId, address, port );
 			} else if ( name.equals( "unsubscribe" ) ) {
 				subscribers.remove( clientId );
+				if ( journal != null ) {
+					journal.unsubscribe( clientId );
+				}
 			} else if ( name.equals( "poll" ) ) {
-				TimelineSubscriber subscriber = new TimelineSubscriber( commandId, "", 0, server );
-				subscriber.setClient( this.clientId, nmt.getName() );
-				Video video = nowPlayingMonitor.getLastVideo();
-				Element videoTimeline = (video == null ? subscriber.generateEmptyTimeline( "video" ) : subscriber.generateTimeline( video ));
-				Track track = nowPlayingMonitor.getLastTrack();
-				Element audioTimeline = (track == null ? subscriber.generateEmptyTimeline( "music" ) : subscriber.generateTimeline( track ));
-				Element photoTimeline = subscriber.generateEmptyTimeline( "photo" );
-				Document doc = subscriber.generateTimelineContainer( audioTimeline, photoTimeline, videoTimeline );
-				return doc.toXML();
+				updateSubscriber( clientId, null );
+				return getPollTimeline( commandId );
 			}
 			return null;
 		} else if ( fullPath.equals( "/player/playback/playMedia" ) ) {
@@ -346,7 +699,8 @@ public class PlexNMTHelper implements Container {
 
 			// String clientId = request.getValue( "X-Plex-Client-Identifier" );
 			TimelineSubscriber subscriber = updateSubscriber( clientId, commandId );
-			queue = server.getPlayQueue( containerKey );
+			seeker.cancel();
+			setQueue( server.getPlayQueue( containerKey ) );
 			play( offset, subscriber );
 			return null;
 		} else if ( directory.equals( "/player/playback/" ) ) {
@@ -355,41 +709,47 @@ public class PlexNMTHelper implements Container {
 			String clientId = request.getValue( "X-Plex-Client-Identifier" );
 			updateSubscriber( clientId, commandId );
 			if ( name.equals( "seekTo" ) ) {
-				int offset = query.getInteger( "offset" ) / 1000;
-				return seek( offset, type );
+				seeker.seekTo( query.getInteger( "offset" ) / 1000 );
+				return null;
+			} else if ( name.equals( "refreshPlayQueue" ) ) {
+				PlayQueue current = getQueue();
+				String playQueueId = query.get( "playQueueID" );
+				if ( current != null && (playQueueId == null || playQueueId.equals( current.getPlayQueueId() )) ) {
+					if ( server.refreshPlayQueue( current ) ) {
+						wakeMonitor();
+					}
+				} else {
+					logger.fine( "Ignoring refresh for play queue " + playQueueId + ", it isn't playing" );
+				}
+				return null;
 			} else if ( name.equals( "stepForward" ) || name.equals( "stepBack" ) ) {
+				PlaybackState state = playback.get();
 				Playable playable = null;
 				if ( type.equals( "video" ) ) {
-					playable = nowPlayingMonitor.getLastVideo();
+					playable = state.getVideo();
 				} else if ( type.equals( "music" ) ) {
-					playable = nowPlayingMonitor.getLastTrack();
+					playable = state.getTrack();
 				}
 				if ( playable != null ) {
-					int time = playable.getCurrentTime() / 1000;
-					if ( name.equals( "stepForward" ) ) {
-						time += 30;
-						if ( time > playable.getDuration() ) {
-							time = playable.getDuration();
-						}
-					} else {
-						time -= 15;
-						if ( time < 0 ) {
-							time = 0;
-						}
-					}
-					return seek( time, type );
+					Playable.Progress progress = playable.getProgress();
+					seeker.step( name.equals( "stepForward" ) ? 30 : -15, progress.getCurrentTime() / 1000, progress.getDuration() / 1000 );
 				}
 				return null;
 			} else {
 				if ( name.equals( "stop" ) ) {
-					queue = null;
+					seeker.cancel();
+					setQueue( null );
+					if ( journal != null ) {
+						journal.clear();
+					}
 				}
 				nmt.sendKey( playbackMap.get( name ), "playback" );
+				wakeMonitor();
 				return null;
 			}
 		} else if ( directory.equals( "/player/navigation/" ) ) {
-			String rc = nmt.sendKey( navigationMap.get( name ), "flashlite" );
-			return rc;
+			keys.send( navigationMap.get( name ), "flashlite" );
+			return null;
 		} else {
 			logger.warning( "Don't know what to do for " + fullPath );
 			response.setStatus( Status.NOT_IMPLEMENTED );
@@ -397,17 +757,126 @@ public class PlexNMTHelper implements Container {
 		}
 	}
 
+	private String getMetrics() {
+		StringBuilder sb = new StringBuilder( 8192 );
+		Metrics.write( sb );
+
+		String device = nmt.getName();
+		CommandScheduler commands = nmt.getScheduler();
+		CommandScheduler.Lane[] lanes = CommandScheduler.Lane.values();
+		Metrics.writeHeader( sb, "nmt_queue_depth", "gauge", "Commands waiting for the NMT" );
+		for ( CommandScheduler.Lane lane : lanes ) {
+			Metrics.writeGauge( sb, "nmt_queue_depth", "device", device, "lane", lane.name().toLowerCase(), commands.getQueueDepth( lane ) );
+		}
+		Metrics.writeHeader( sb, "nmt_queue_wait_average_seconds", "gauge", "Average time a command waited for the NMT" );
+		for ( CommandScheduler.Lane lane : lanes ) {
+			Metrics.writeGauge( sb, "nmt_queue_wait_average_seconds", "device", device, "lane", lane.name().toLowerCase(),
+					commands.getAverageWait( lane ) / 1e3 );
+		}
+		Metrics.writeHeader( sb, "nmt_queue_wait_max_seconds", "gauge", "Longest time a command waited for the NMT" );
+		for ( CommandScheduler.Lane lane : lanes ) {
+			Metrics.writeGauge( sb, "nmt_queue_wait_max_seconds", "device", device, "lane", lane.name().toLowerCase(),
+					commands.getMaximumWait( lane ) / 1e3 );
+		}
+		Metrics.writeHeader( sb, "nmt_response_average_seconds", "gauge", "Average time taken by the NMT to answer a command" );
+		Metrics.writeGauge( sb, "nmt_response_average_seconds", "device", device, commands.getAverageResponse() / 1e3 );
+		Metrics.writeHeader( sb, "nmt_keys_waiting", "gauge", "Navigation keys answered but not yet sent to the NMT" );
+		Metrics.writeGauge( sb, "nmt_keys_waiting", "device", device, keys.getWaiting() );
+		Metrics.writeHeader( sb, "timeline_subscribers", "gauge", "Controllers subscribed to the timeline" );
+		Metrics.writeGauge( sb, "timeline_subscribers", "device", device, subscribers.size() );
+		int[] breakers = new int[CircuitBreaker.State.values().length];
+		for ( TimelineSubscriber subscriber : subscribers.values() ) {
+			breakers[subscriber.getBreakerState().ordinal()]++;
+		}
+		Metrics.writeHeader( sb, "timeline_subscriber_breakers", "gauge", "Subscribed controllers by the state of their circuit breaker" );
+		for ( CircuitBreaker.State state : CircuitBreaker.State.values() ) {
+			Metrics.writeGauge( sb, "timeline_subscriber_breakers", "device", device, "state", state.name().toLowerCase(),
+					breakers[state.ordinal()] );
+		}
+		if ( poll != null ) {
+			Metrics.writeHeader( sb, "timeline_polls_waiting", "gauge", "Long polls waiting for the timeline to change" );
+			Metrics.writeGauge( sb, "timeline_polls_waiting", "device", device, poll.getWaiting() );
+			Metrics.writeHeader( sb, "timeline_version", "gauge", "How many times the timeline has changed" );
+			Metrics.writeGauge( sb, "timeline_version", "device", device, poll.getVersion() );
+		}
+		if ( publisher != null ) {
+			Metrics.writeHeader( sb, "timeline_dropped_total", "counter", "Timeline updates dropped because the publisher was saturated" );
+			Metrics.writeGauge( sb, "timeline_dropped_total", null, null, publisher.getDropped() );
+		}
+		HttpTransport[] transports = { transport, nmtTransport };
+		PoolStats[] stats = new PoolStats[transports.length];
+		for ( int i = 0; i < transports.length; ++i ) {
+			stats[i] = transports[i].getStats();
+		}
+		Metrics.writeHeader( sb, "http_connections_leased", "gauge", "Pooled connections in use" );
+		for ( int i = 0; i < transports.length; ++i ) {
+			Metrics.writeGauge( sb, "http_connections_leased", "pool", transports[i].getName(), stats[i].getLeased() );
+		}
+		Metrics.writeHeader( sb, "http_connections_available", "gauge", "Pooled connections open and idle" );
+		for ( int i = 0; i < transports.length; ++i ) {
+			Metrics.writeGauge( sb, "http_connections_available", "pool", transports[i].getName(), stats[i].getAvailable() );
+		}
+		Metrics.writeHeader( sb, "http_connections_pending", "gauge", "Requests waiting for a pooled connection" );
+		for ( int i = 0; i < transports.length; ++i ) {
+			Metrics.writeGauge( sb, "http_connections_pending", "pool", transports[i].getName(), stats[i].getPending() );
+		}
+		Metrics.writeHeader( sb, "http_connections_opened_total", "counter", "Connections opened by the pool" );
+		for ( int i = 0; i < transports.length; ++i ) {
+			Metrics.writeGauge( sb, "http_connections_opened_total", "pool", transports[i].getName(), transports[i].getConnectionsOpened() );
+		}
+		return sb.toString();
+	}
+
 	private TimelineSubscriber updateSubscriber( String clientId, String commandId ) {
-		TimelineSubscriber subscriber = subscribers.get( clientId );
+		TimelineSubscriber subscriber = clientId == null ? null : subscribers.get( clientId );
 		if ( subscriber != null ) {
-			subscriber.setCommandId( commandId );
+			subscriber.touch();
+			if ( commandId != null ) {
+				subscriber.setCommandId( commandId );
+			}
 		}
 		return subscriber;
 	}
 
+	private static final Metrics.Family< AtomicLong > expiredSubscribers = Metrics.counters( "timeline_subscribers_expired_total", "device",
+			"Controllers dropped for not renewing their subscription" );
+
+	// Drops the controllers that stopped renewing without unsubscribing, e.g. because they left the network
+	private void expireSubscribers() {
+		long now = System.currentTimeMillis();
+		for ( Map.Entry< String, TimelineSubscriber > entry : subscribers.entrySet() ) {
+			TimelineSubscriber subscriber = entry.getValue();
+			if ( subscriber.isExpired( now, subscriberTimeout ) && subscribers.remove( entry.getKey(), subscriber ) ) {
+				logger.info( "Subscription from " + subscriber.getPostUrl() + " expired" );
+				expiredSubscribers.get( nmt.getName() ).incrementAndGet();
+				if ( journal != null ) {
+					journal.unsubscribe( entry.getKey() );
+				}
+			}
+		}
+	}
+
+	private TimelinePublisher publisher = null;
+
+	private TimelinePublisher.Mailbox< URI > serverMailbox = new TimelinePublisher.Mailbox< URI >() {
+		@Override
+		protected void deliver( URI uri ) throws Exception {
+			sendServerTimeline( uri );
+		}
+
+		@Override
+		public String toString() {
+			return server.getName();
+		}
+	};
+
+	public void setPublisher( TimelinePublisher publisher ) {
+		this.publisher = publisher;
+	}
+
 	public void updateTimeline( Track audio ) throws ClientProtocolException, ValidityException, IllegalStateException, IOException,
 			ParsingException, URISyntaxException {
-		server.updateTimeline( audio );
+		updateServerTimeline( audio );
 
 		for ( TimelineSubscriber subscriber : subscribers.values() ) {
 			subscriber.updateTimeline( audio );
@@ -416,7 +885,7 @@ public class PlexNMTHelper implements Container {
 
 	public void updateTimeline( Video video ) throws ClientProtocolException, ValidityException, IllegalStateException, IOException,
 			ParsingException, URISyntaxException {
-		server.updateTimeline( video );
+		updateServerTimeline( video );
 
 		for ( TimelineSubscriber subscriber : subscribers.values() ) {
 
@@ -424,45 +893,187 @@ public class PlexNMTHelper implements Container {
 		}
 	}
 
-	private String seek( int offset, String type ) throws ClientProtocolException, IOException, ValidityException, IllegalStateException,
-			ParsingException, InterruptedException, URISyntaxException {
-		int seconds = offset % 60;
-		offset = offset / 60;
-		int minutes = offset % 60;
-		int hours = offset / 60;
-
-		String timestamp = String.format( "%02d:%02d:%02d", hours, minutes, seconds );
+	private TimelineHeartbeat serverHeartbeat;
+	private int serverGeneration = -1;
 
-		nmt.sendCommand( "playback", "set_time_seek_vod", timestamp );
+	// Updates for different items are kept apart, so a "stopped" for the previous item isn't replaced by the next item's "playing"
+	private void updateServerTimeline( Playable playable ) throws ClientProtocolException, ValidityException, IllegalStateException,
+			IOException, ParsingException, URISyntaxException {
+		// A server taken over from one that stopped answering hasn't had any of the earlier updates
+		if ( server.getGeneration() != serverGeneration ) {
+			serverGeneration = server.getGeneration();
+			serverHeartbeat.reset();
+		}
+		Playable.Progress progress = playable.getProgress();
+		long now = System.currentTimeMillis();
+		if ( !serverHeartbeat.isDue( playable, progress.getState(), progress, now ) ) {
+			return;
+		}
+		serverHeartbeat.sent( playable, progress.getState(), progress, now );
+		if ( journal != null ) {
+			journal.position( playable.getKey(), progress.getState(), progress.getCurrentTime() );
+		}
+		// Only built for the updates that are sent, from the same progress the heartbeat looked at
+		URI uri = playable.getType() == Video.type ? server.getTimelineUri( (Video) playable, progress ) : server.getTimelineUri(
+				(Track) playable, progress );
+		if ( publisher != null ) {
+			if ( !publisher.publish( serverMailbox, playable.getKey(), uri ) ) {
+				serverHeartbeat.reset();
+			}
+		} else {
+			sendServerTimeline( uri );
+		}
+	}
 
-		return null;
+	// An update the server may not have had is forgotten, so the next one goes out whatever it is
+	private void sendServerTimeline( URI uri ) throws ClientProtocolException, ValidityException, IllegalStateException, IOException,
+			ParsingException {
+		try {
+			server.sendCommand( uri );
+		} catch ( IOException ex ) {
+			serverHeartbeat.reset();
+			throw ex;
+		}
 	}
 
+	private SeekCoalescer seeker = null;
+
+	// Navigation keys are answered once queued, a d-pad held down gets no further ahead of the NMT than this
+	private static final int maxQueuedKeys = 8;
+	private KeyPipeline keys;
+
+	// Until the monitor next looks, the playing video is taken to be where it was sent, so further steps start from there
+	private SeekCoalescer.Listener seekListener = new SeekCoalescer.Listener() {
+		public void seeked( int seconds, boolean accepted ) {
+			Video video = playback.get().getVideo();
+			if ( accepted && video != null ) {
+				Playable.Progress progress = video.getProgress();
+				video.setProgress( progress.getState(), seconds * 1000, progress.getDuration() );
+			}
+			wakeMonitor();
+		}
+	};
+
 	public void play( int time, TimelineSubscriber subscriber ) throws ClientProtocolException, ValidityException, IllegalStateException,
 			IOException, ParsingException, InterruptedException, URISyntaxException {
+		PlayQueue queue = getQueue();
 		Playable playable = queue.getCurrent();
-		playable.setCurrentTime( time );
-		playable.setState( "playing" );
+		playable.setProgress( "playing", time, playable.getDuration() );
 		String playFile = playable.getPlayFile();
 		if ( subscriber != null ) {
 			subscriber.updateTimeline( playable );
 		}
+		String originalFile = null;
 		if ( playable.getType() == Video.type ) {
 			Video video = fix( (Video) playable );
-			playFile = nmt.getConvertedPath( video.getPlayFile() );
+			originalFile = video.getPlayFile();
+			playFile = nmt.getConvertedPath( originalFile );
 			if ( playFile == null ) {
 				playFile = playable.getPlayFile();
 			} else {
 				playable.setPlayFile( playFile );
 			}
+		} else {
+			// Tracks are streamed from the server, wherever it is now
+			playable.setPlayFile( server.getPartUrl( playable.getFile() ) );
+		}
+		if ( !nmt.play( playable, time ) && originalFile != null && !originalFile.equals( playFile ) ) {
+			// The share may have been remounted somewhere else since its conversion was cached, so convert again and retry once
+			logger.warning( "Unable to play " + playFile + ", converting " + originalFile + " again" );
+			nmt.invalidateConvertedPath( originalFile );
+			playFile = nmt.getConvertedPath( originalFile );
+			playable.setPlayFile( playFile == null ? originalFile : playFile );
+			nmt.play( playable, time );
+		}
+		if ( journal != null ) {
+			journal.queue( queue.getId(), queue.getItemOffset(), playable.getType(), playable.getKey(), playable.getPlayFile() );
+		}
+		wakeMonitor();
+	}
+
+	private SessionJournal journal = null;
+
+	/**
+	 * Keeps what the device is playing and who's subscribed in the journal, and picks up the session it holds when started.
+	 */
+	public void setJournal( SessionJournal journal ) {
+		this.journal = journal;
+	}
+
+	private TimelineSubscriber subscribe( String clientId, String commandId, String address, int port ) {
+		TimelineSubscriber subscriber = new TimelineSubscriber( commandId, address, port, server );
+		subscriber.setClient( this.clientId, nmt.getName() );
+		subscriber.setHttpClient( client );
+		subscriber.setPublisher( publisher );
+		subscriber.setWriter( getWriter() );
+		subscriber.setHeartbeat( subscriberTimelineHeartbeat );
+		subscribers.put( clientId, subscriber );
+		if ( journal != null ) {
+			journal.subscribe( clientId, commandId, address, port );
+		}
+		return subscriber;
+	}
+
+	/**
+	 * Picks up the session recorded before the helper last stopped. The controllers are subscribed again, and if the NMT is still
+	 * playing the same file the play queue is fetched again and the monitor takes over from where the NMT has got to.
+	 */
+	private void resume() {
+		long start = System.nanoTime();
+		SessionJournal.Session session = journal.getSession();
+		for ( SessionJournal.Subscription subscription : session.getSubscriptions() ) {
+			subscribe( subscription.getClientId(), subscription.getCommandId(), subscription.getAddress(), subscription.getPort() );
+		}
+		if ( session.getContainerKey() == null ) {
+			return;
+		}
+
+		try {
+			String command = Video.type.equals( session.getType() ) ? "get_current_vod_info" : "get_current_aod_info";
+			NmtStatus status = nmt.getStatus( CommandScheduler.Lane.INTERACTIVE, new NmtStatus(), "playback", command );
+			if ( !status.isPlaying() || !session.getPlayFile().equals( status.getFullPath() ) ) {
+				logger.info( "The NMT is no longer playing " + session.getPlayFile() + ", not resuming play queue " + session.getContainerKey() );
+				journal.clear();
+				return;
+			}
+
+			PlayQueue queue = server.getPlayQueue( session.getContainerKey() );
+			if ( !queue.select( session.getKey(), session.getOffset() ) ) {
+				logger.info( "Play queue " + session.getContainerKey() + " no longer holds " + session.getKey() + ", not resuming it" );
+				journal.clear();
+				return;
+			}
+			Playable playable = queue.getCurrent();
+			// What the NMT is playing, so the monitor recognizes it; playing it again works it out afresh from the server as it is then
+			playable.setPlayFile( session.getPlayFile() );
+			int duration = playable.getDuration();
+			playable.setProgress( status.getState(), status.getCurrentTime(), duration == 0 ? status.getTotalTime() : duration );
+			setQueue( queue );
+			wakeMonitor();
+			logger.info( "Resumed " + playable.getTitle() + " from play queue " + session.getContainerKey() + " in "
+					+ TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) + "ms" );
+		} catch ( Exception ex ) {
+			logger.warning( "Unable to resume play queue " + session.getContainerKey() );
+			ExceptionLogger.log( logger, ex );
 		}
-		nmt.play( playable, time );
 	}
 
-	private List< Replacement > replacements = new ArrayList< Replacement >();
+	private void wakeMonitor() {
+		if ( nowPlayingMonitor != null ) {
+			nowPlayingMonitor.wake();
+		}
+	}
+
+	private ReplacementIndex replacements = new ReplacementIndex();
 
-	private void initReplacements( File replacementConfig ) throws ClientProtocolException, ValidityException, IllegalStateException, IOException,
-			ParsingException, InterruptedException {
+	ReplacementIndex getReplacements() {
+		return replacements;
+	}
+
+	/**
+	 * Reads the path replacements. Nothing is asked of the NMT, that's left to {@link #convertReplacements(ExecutorService)}.
+	 */
+	private void readReplacements( File replacementConfig ) {
 		logger.config( "Reading " + replacementConfig.getAbsolutePath() );
 		if ( replacementConfig.canRead() ) {
 			try {
@@ -478,10 +1089,12 @@ public class PlexNMTHelper implements Container {
 						String to = replacementElement.getAttributeValue( "to" );
 
 						Replacement replacement = new Replacement( from, to );
-						replacements.add( replacement );
+						if ( !replacements.add( replacement ) ) {
+							logger.warning( "Ignoring replacement " + replacement + ", there's already one from " + replacement.getFrom() );
+							continue;
+						}
 						logger.config( "Added replacement " + replacement );
-
-						replacement.setPlayTo( nmt.getConvertedPath( replacement.getTo() ) );
+						configuredReplacements.add( replacement );
 					}
 				}
 			} catch ( Exception e ) {
@@ -492,25 +1105,85 @@ public class PlexNMTHelper implements Container {
 		if ( replacements.isEmpty() ) {
 			logger.warning( "Warning, no path replacements have been configured." );
 		}
+	}
+
+	private List< Replacement > configuredReplacements = new ArrayList< Replacement >();
+
+	/**
+	 * Asks the NMT how it plays each replacement's destination, all at once rather than one after another. The NMT still runs its
+	 * commands one at a time, but they're queued together and none of it holds up the device being ready.
+	 */
+	private void convertReplacements( ExecutorService executor ) {
+		if ( configuredReplacements.isEmpty() ) {
+			return;
+		}
+		final StartupTimer timer = new StartupTimer( nmt.getName(), "conversions" );
+		final AtomicInteger remaining = new AtomicInteger( configuredReplacements.size() );
+		for ( final Replacement replacement : configuredReplacements ) {
+			executor.execute( new Runnable() {
+				public void run() {
+					try {
+						String playTo = nmt.getConvertedPath( replacement.getTo() );
+						if ( playTo != null ) {
+							replacement.setPlayTo( playTo );
+						}
+					} catch ( Exception ex ) {
+						logger.warning( "Unable to convert " + replacement.getTo() );
+						ExceptionLogger.log( logger, ex );
+					} finally {
+						if ( remaining.decrementAndGet() == 0 ) {
+							timer.stop();
+						}
+					}
+				}
+			} );
+		}
+	}
+
+	private TimelinePoll poll = null;
 
+	/**
+	 * Lets parked timeline polls know the monitor has taken another look at the NMT.
+	 */
+	public void updatePoll() {
+		if ( poll != null ) {
+			PlaybackState state = playback.get();
+			poll.update( state.getTrack(), state.getVideo() );
+		}
+	}
+
+	private volatile boolean started = false;
+
+	public void start( ScheduledExecutorService scheduler ) {
+		poll = new TimelinePoll( scheduler, timelinePollTimeout );
+		seeker = new SeekCoalescer( nmt, nmt.getName(), scheduler, seekWindow, seekListener );
+		scheduler.scheduleWithFixedDelay( new Runnable() {
+			public void run() {
+				try {
+					expireSubscribers();
+				} catch ( Exception ex ) {
+					ExceptionLogger.log( logger, ex );
+				}
+			}
+		}, 10000, 10000, TimeUnit.MILLISECONDS );
 		nowPlayingMonitor = new NowPlayingMonitor( this, nmt );
-		Thread.sleep( 2000 );
-		new Thread( nowPlayingMonitor ).start();
+		nowPlayingMonitor.start( 0 );
+		if ( journal != null ) {
+			journal.startSync( scheduler, 1000 );
+			resume();
+		}
+		started = true;
 	}
 
 	public Video fix( Video video ) throws ClientProtocolException, ValidityException, IllegalStateException, IOException, ParsingException,
 			InterruptedException {
 		logger.finer( "Processing video, key=" + video.getKey() + ", file=" + video.getFile() );
-		if ( video.getPlayFile() != null ) {
-			return video;
-		}
 		String originalFile = video.getFile();
 		String file = originalFile.replace( '\\', '/' );
-		for ( Replacement replacement : replacements ) {
-			if ( replacement.matches( file ) ) {
-				video.setPlayFile( replacement.convert( file ) );
-				return video;
-			}
+		Replacement found = replacements.find( file );
+		if ( found != null ) {
+			video.setPlayFile( found.convert( file ) );
+			return video;
 		}
 		if ( file.startsWith( "//" ) ) {
 			int slash = file.indexOf( '/', 2 );
@@ -519,10 +1192,11 @@ public class PlexNMTHelper implements Container {
 			String newShare = "smb:" + file.substring( 0, slash + 1 );
 			video.setPlayFile( newShare + file.substring( slash + 1 ) );
 			Replacement replacement = new Replacement( originalShare.replace( '\\', '/' ), newShare );
-			logger.config( "Generated replacement " + replacement );
-			replacements.add( replacement );
+			if ( replacements.add( replacement ) ) {
+				logger.config( "Generated replacement " + replacement );
+			}
 		} else {
-			video.setPlayFile( video.getHttpFile() );
+			video.setPlayFile( server.getPartUrl( video.getPartKey() ) );
 		}
 		return video;
 	}
@@ -594,11 +1268,15 @@ public class PlexNMTHelper implements Container {
 		request.addHeader( "X-Plex-Version", NetworkedMediaTank.productVersion );
 
 		CloseableHttpResponse response = client.execute( request );
-		HttpEntity entity = response.getEntity();
-		if ( entity != null && entity.getContentLength() != 0 ) {
-			JSONObject wrapper = (JSONObject) JSONValue.parse( new InputStreamReader( entity.getContent() ) );
-			JSONObject jsonUser = (JSONObject) wrapper.get( "user" );
-			token = (String) jsonUser.get( "authentication_token" );
+		try {
+			HttpEntity entity = response.getEntity();
+			if ( entity != null && entity.getContentLength() != 0 ) {
+				JSONObject wrapper = (JSONObject) JSONValue.parse( new InputStreamReader( entity.getContent() ) );
+				JSONObject jsonUser = (JSONObject) wrapper.get( "user" );
+				token = (String) jsonUser.get( "authentication_token" );
+			}
+		} finally {
+			HttpTransport.release( response );
 		}
 
 		return token;
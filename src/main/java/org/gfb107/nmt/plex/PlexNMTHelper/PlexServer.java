@@ -1,10 +1,10 @@
 package org.gfb107.nmt.plex.PlexNMTHelper;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 import nu.xom.Attribute;
@@ -22,12 +22,14 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
 
 public class PlexServer {
 	private Logger logger = Logger.getLogger( PlexServer.class.getName() );
-	private String name;
-	private String address;
-	private int port;
+	// A server can be switched to another one while running, so these are read fresh for every request
+	private volatile String name;
+	private volatile Location location;
+	private volatile String identifier;
 
 	private String clientId;
 	private String clientName;
@@ -36,9 +38,26 @@ public class PlexServer {
 
 	private Element successResponse = null;
 
+	private static final Metrics.Family< Histogram > requestTimes = Metrics.histograms( "plex_request_seconds", "device",
+			"Time taken by the PLEX server to answer a request" );
+
+	/**
+	 * Where the server is, switched as a whole so a request never sees one server's address with another's port.
+	 */
+	private static class Location {
+		private final String address;
+		private final int port;
+		private final int generation;
+
+		private Location( String address, int port, int generation ) {
+			this.address = address;
+			this.port = port;
+			this.generation = generation;
+		}
+	}
+
 	public PlexServer( String address, int port, String name ) {
-		this.address = address;
-		this.port = port;
+		location = new Location( address, port, 0 );
 		this.name = name;
 
 		successResponse = new Element( "Response" );
@@ -51,11 +70,39 @@ public class PlexServer {
 	}
 
 	public String getAddress() {
-		return address;
+		return location.address;
 	}
 
 	public int getPort() {
-		return port;
+		return location.port;
+	}
+
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	public void setIdentifier( String identifier ) {
+		this.identifier = identifier;
+	}
+
+	/**
+	 * @return a number that changes every time the server is switched, for anything that caches the server's address
+	 */
+	public int getGeneration() {
+		return location.generation;
+	}
+
+	/**
+	 * Points this server at another one, keeping the client details and token.
+	 */
+	public synchronized void switchTo( PlexServer other ) {
+		Location from = location;
+		Location to = other.location;
+		logger.warning( "Switching from PLEX server '" + name + "' at " + from.address + ':' + from.port + " to '" + other.getName() + "' at "
+				+ to.address + ':' + to.port );
+		name = other.getName();
+		identifier = other.getIdentifier();
+		location = new Location( to.address, to.port, from.generation + 1 );
 	}
 
 	public void setClient( CloseableHttpClient client ) throws ClientProtocolException, ValidityException, IllegalStateException, IOException,
@@ -72,7 +119,8 @@ public class PlexServer {
 	}
 
 	private URIBuilder getBuilder() {
-		return new URIBuilder().setScheme( "http" ).setHost( address ).setPort( port );
+		Location location = this.location;
+		return new URIBuilder().setScheme( "http" ).setHost( location.address ).setPort( location.port );
 	}
 
 	public Element sendCommand( URI uri ) throws ClientProtocolException, IOException, ValidityException, IllegalStateException, ParsingException {
@@ -94,34 +142,72 @@ public class PlexServer {
 			logger.finer( header.getName() + ": " + header.getValue() );
 		}
 
+		long start = System.nanoTime();
 		CloseableHttpResponse httpResponse = client.execute( get );
-		HttpEntity entity = httpResponse.getEntity();
-
-		Element response = successResponse;
-
-		if ( entity != null && entity.getContentType().getValue().split( ";" )[0].equals( "text/xml" ) ) {
-			response = new Builder().build( entity.getContent() ).getRootElement();
-		} else {
-			StatusLine statusLine = httpResponse.getStatusLine();
-			response = new Element( "Response" );
-			response.addAttribute( new Attribute( "code", Integer.toString( statusLine.getStatusCode() ) ) );
-			response.addAttribute( new Attribute( "status", statusLine.getReasonPhrase() ) );
-			StringBuilder sb = new StringBuilder();
-			BufferedReader reader = new BufferedReader( new InputStreamReader( entity.getContent() ) );
-			String line = null;
-			while ( (line = reader.readLine()) != null ) {
-				sb.append( line );
-				sb.append( "\n" );
+		try {
+			HttpEntity entity = httpResponse.getEntity();
+
+			Element response = successResponse;
+
+			if ( entity != null && entity.getContentType() != null && entity.getContentType().getValue().split( ";" )[0].equals( "text/xml" ) ) {
+				response = new Builder().build( entity.getContent() ).getRootElement();
+			} else {
+				StatusLine statusLine = httpResponse.getStatusLine();
+				response = new Element( "Response" );
+				response.addAttribute( new Attribute( "code", Integer.toString( statusLine.getStatusCode() ) ) );
+				response.addAttribute( new Attribute( "status", statusLine.getReasonPhrase() ) );
+				if ( entity != null ) {
+					response.addAttribute( new Attribute( "content", EntityUtils.toString( entity ) ) );
+				}
 			}
-			response.addAttribute( new Attribute( "content", sb.toString() ) );
-		}
 
-		logger.finer( "Response was " + response.toXML() );
-		return response;
+			logger.finer( "Response was " + response.toXML() );
+			return response;
+		} finally {
+			HttpTransport.release( httpResponse );
+			requestTimes.get( clientName ).recordNanos( System.nanoTime() - start );
+		}
 	}
 
 	public PlayQueue getPlayQueue( String containerKey ) throws ClientProtocolException, ValidityException, IllegalStateException, IOException,
 			ParsingException, URISyntaxException {
+		return getPlayQueue( containerKey, sendCommand( getPlayQueueUri( containerKey ) ) );
+	}
+
+	PlayQueue getPlayQueue( String containerKey, Element element ) throws ClientProtocolException, ValidityException, IllegalStateException,
+			IOException, ParsingException {
+		PlayQueue queue = new PlayQueue( containerKey, getSelectedOffset( element ) );
+		for ( Playable playable : getPlayables( containerKey, element ) ) {
+			queue.add( playable );
+		}
+		queue.setVersion( element.getAttributeValue( "playQueueID" ), getVersion( element ) );
+		return queue;
+	}
+
+	/**
+	 * Brings a queue that's being played up to date with the server, for when a controller added, removed or moved items. The server
+	 * only hands out whole queues, but if its version hasn't moved nothing more is done, and otherwise only the new items are added,
+	 * without stopping what's playing.
+	 *
+	 * @return true if the queue changed
+	 */
+	public boolean refreshPlayQueue( PlayQueue queue ) throws ClientProtocolException, ValidityException, IllegalStateException, IOException,
+			ParsingException, URISyntaxException {
+		Element element = sendCommand( getPlayQueueUri( queue.getId() ) );
+
+		int version = getVersion( element );
+		if ( version != 0 && version == queue.getVersion() ) {
+			logger.fine( "Play queue " + queue.getPlayQueueId() + " is still at version " + version );
+			return false;
+		}
+
+		int added = queue.merge( version, getPlayables( queue.getId(), element ), getSelectedOffset( element ) );
+		logger.fine( "Play queue " + queue.getPlayQueueId() + " refreshed to version " + version + ", " + added + " new of " + queue.size()
+				+ " items" );
+		return true;
+	}
+
+	private URI getPlayQueueUri( String containerKey ) throws URISyntaxException {
 		String[] parts = containerKey.split( "\\?" );
 		String path = parts[0];
 		String query = null;
@@ -142,45 +228,86 @@ public class PlexServer {
 			}
 		}
 
-		Element element = sendCommand( builder.build() );
+		return builder.build();
+	}
+
+	private static int getSelectedOffset( Element element ) {
+		return Integer.parseInt( element.getAttributeValue( "playQueueSelectedItemOffset" ) );
+	}
+
+	private static int getVersion( Element element ) {
+		String version = element.getAttributeValue( "playQueueVersion" );
+		return version == null ? 0 : Integer.parseInt( version );
+	}
 
-		PlayQueue queue = new PlayQueue( containerKey, Integer.parseInt( element.getAttributeValue( "playQueueSelectedItemOffset" ) ) );
+	private List< Playable > getPlayables( String containerKey, Element element ) throws ClientProtocolException, ValidityException,
+			IllegalStateException, IOException, ParsingException {
+		List< Playable > playables = new ArrayList< Playable >();
 		Elements tracks = element.getChildElements();
 		for ( int t = 0; t < tracks.size(); ++t ) {
 			Element trackElement = tracks.get( t );
 			String type = trackElement.getAttributeValue( "type" );
+			Playable playable = null;
 			if ( type.equals( "movie" ) || type.equals( "episode" ) ) {
-				queue.add( getVideo( containerKey, trackElement ) );
+				playable = getVideo( containerKey, trackElement );
 			} else if ( type.equals( "track" ) ) {
-				queue.add( getTrack( containerKey, trackElement ) );
+				playable = getTrack( containerKey, trackElement );
+			}
+			if ( playable != null ) {
+				playable.setPlayQueueItemId( trackElement.getAttributeValue( "playQueueItemID" ) );
+				playables.add( playable );
 			}
 		}
-		return queue;
+		return playables;
 	}
 
 	public Element updateTimeline( Video video ) throws ClientProtocolException, ValidityException, IllegalStateException, IOException,
 			ParsingException, URISyntaxException {
-		URIBuilder builder = getBuilder().setPath( "/:/timeline" ).addParameter( "containerKey", video.getContainerKey() )
-				.addParameter( "duration", Integer.toString( video.getDuration() ) ).addParameter( "guid", video.getGuid() )
-				.addParameter( "key", video.getKey() ).addParameter( "ratingKey", video.getRatingKey() ).addParameter( "state", video.getState() )
-				.addParameter( "time", Integer.toString( video.getCurrentTime() ) );
-
-		return sendCommand( builder.build() );
+		return sendCommand( getTimelineUri( video ) );
 	}
 
 	public Element updateTimeline( Track audio ) throws ClientProtocolException, ValidityException, IllegalStateException, IOException,
 			ParsingException, URISyntaxException {
+		return sendCommand( getTimelineUri( audio ) );
+	}
+
+	public URI getTimelineUri( Video video ) throws URISyntaxException {
+		return getTimelineUri( video, video.getProgress() );
+	}
+
+	/**
+	 * @param progress where the video stands, taken once so the state, time and duration sent belong together
+	 */
+	public URI getTimelineUri( Video video, Playable.Progress progress ) throws URISyntaxException {
+		URIBuilder builder = getBuilder().setPath( "/:/timeline" ).addParameter( "containerKey", video.getContainerKey() )
+				.addParameter( "duration", Integer.toString( progress.getDuration() ) ).addParameter( "guid", video.getGuid() )
+				.addParameter( "key", video.getKey() ).addParameter( "ratingKey", video.getRatingKey() )
+				.addParameter( "state", progress.getState() ).addParameter( "time", Integer.toString( progress.getCurrentTime() ) );
+
+		return builder.build();
+	}
+
+	public URI getTimelineUri( Track audio ) throws URISyntaxException {
+		return getTimelineUri( audio, audio.getProgress() );
+	}
+
+	public URI getTimelineUri( Track audio, Playable.Progress progress ) throws URISyntaxException {
 		URIBuilder builder = getBuilder().setPath( "/:/timeline" ).addParameter( "containerKey", audio.getContainerKey() )
 
-		.addParameter( "duration", Integer.toString( audio.getDuration() ) ).addParameter( "key", audio.getKey() )
-				.addParameter( "ratingKey", audio.getRatingKey() ).addParameter( "state", audio.getState() )
-				.addParameter( "time", Integer.toString( audio.getCurrentTime() ) );
+		.addParameter( "duration", Integer.toString( progress.getDuration() ) ).addParameter( "key", audio.getKey() )
+				.addParameter( "ratingKey", audio.getRatingKey() ).addParameter( "state", progress.getState() )
+				.addParameter( "time", Integer.toString( progress.getCurrentTime() ) );
 
-		return sendCommand( builder.build() );
+		return builder.build();
 	}
 
-	private String getPrefix() {
-		return "http://" + address + ':' + port;
+	/**
+	 * @param key a part's key, as given by {@link Video#getPartKey()} or {@link Track#getFile()}
+	 * @return the part's URL on the server as it is now, which may not be where it was when the part was fetched
+	 */
+	public String getPartUrl( String key ) {
+		Location location = this.location;
+		return "http://" + location.address + ':' + location.port + key;
 	}
 
 	public Video getVideo( String containerKey, Element videoElement ) throws ClientProtocolException, ValidityException, IllegalStateException,
@@ -197,9 +324,9 @@ public class PlexServer {
 		Element media = videoElement.getFirstChildElement( "Media" );
 		Element part = media.getFirstChildElement( "Part" );
 		String file = part.getAttributeValue( "file" );
-		String httpFile = getPrefix() + part.getAttributeValue( "key" );
+		String partKey = part.getAttributeValue( "key" );
 
-		return new Video( containerKey, key, ratingKey, title, guid, duration, file, httpFile );
+		return new Video( containerKey, key, ratingKey, title, guid, duration, file, partKey );
 	}
 
 	public Track getTrack( String containerKey, Element trackElement ) {
@@ -214,9 +341,7 @@ public class PlexServer {
 		Element part = trackElement.getFirstChildElement( "Media" ).getFirstChildElement( "Part" );
 		String file = part.getAttributeValue( "key" );
 
-		Track track = new Track( containerKey, key, ratingKey, title, file, duration );
-		track.setPlayFile( getPrefix() + file );
-		return track;
+		return new Track( containerKey, key, ratingKey, title, file, duration );
 	}
 
 	private String token = null;
@@ -0,0 +1,90 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Path replacements indexed by their from prefix, one trie level per directory. A lookup walks the directories of the path once and
+ * returns the replacement with the longest matching prefix, however many replacements there are. Adding a replacement copies the
+ * nodes along its path and publishes a new root, so lookups never lock and never see a half built index.
+ */
+public class ReplacementIndex {
+	private volatile Node root = new Node( Collections.< String, Node > emptyMap() );
+	private volatile int size = 0;
+
+	/**
+	 * Adds a replacement, unless one with the same from prefix is already there, in which case the first one stays.
+	 *
+	 * @return true if the replacement was added
+	 */
+	public synchronized boolean add( Replacement replacement ) {
+		String from = replacement.getFrom();
+
+		Node newRoot = root.copy();
+		Node node = newRoot;
+		int start = 0;
+		int slash;
+		while ( (slash = from.indexOf( '/', start )) >= 0 ) {
+			String segment = from.substring( start, slash );
+			Node child = node.children.get( segment );
+			child = child == null ? new Node( new HashMap< String, Node >() ) : child.copy();
+			node.children.put( segment, child );
+			node = child;
+			start = slash + 1;
+		}
+
+		if ( node.replacement != null ) {
+			return false;
+		}
+		node.replacement = replacement;
+
+		root = newRoot;
+		size++;
+		return true;
+	}
+
+	/**
+	 * @return the replacement with the longest from prefix that matches the path, or null if none match
+	 */
+	public Replacement find( String path ) {
+		Node node = root;
+		Replacement found = null;
+		int start = 0;
+		int slash;
+		while ( (slash = path.indexOf( '/', start )) >= 0 ) {
+			node = node.children.get( path.substring( start, slash ) );
+			if ( node == null ) {
+				break;
+			}
+			if ( node.replacement != null ) {
+				found = node.replacement;
+			}
+			start = slash + 1;
+		}
+		return found;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	private static class Node {
+		private Map< String, Node > children;
+		private Replacement replacement = null;
+
+		private Node( Map< String, Node > children ) {
+			this.children = children;
+		}
+
+		private Node copy() {
+			Node copy = new Node( new HashMap< String, Node >( children ) );
+			copy.replacement = replacement;
+			return copy;
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import nu.xom.Element;
+
+import org.gfb107.nmt.plex.PlexNMTHelper.CommandScheduler.Lane;
+
+/**
+ * Collapses a burst of seeks, as a controller's scrub bar sends them, into as few as the NMT can carry out. A seek is acknowledged as
+ * soon as it's recorded. After a short window a single seek is queued in the interactive lane, and it takes the latest target only
+ * when its turn comes, so seeks that arrive while it waits or while the NMT is still busy with the last one replace each other instead
+ * of being replayed one after another. Steps are taken from the latest target rather than from where the NMT last said it was, so a
+ * run of steps adds up to one seek.
+ */
+public class SeekCoalescer {
+	private static Logger logger = Logger.getLogger( SeekCoalescer.class.getName() );
+
+	/**
+	 * Told when a seek has been carried out, from the NMT's command thread.
+	 */
+	public interface Listener {
+		void seeked( int seconds, boolean accepted );
+	}
+
+	private static final Metrics.Family< AtomicLong > sentSeeks = Metrics.counters( "nmt_seeks_total", "device",
+			"Seeks sent to the NMT" );
+	private static final Metrics.Family< AtomicLong > supersededSeeks = Metrics.counters( "nmt_seeks_superseded_total", "device",
+			"Seeks replaced by a later one before they were sent" );
+
+	private NetworkedMediaTank nmt;
+	private ScheduledExecutorService scheduler;
+	private long window;
+	private Listener listener;
+	private AtomicLong sent;
+	private AtomicLong superseded;
+
+	// Seconds, -1 for none: the target still to be sent, and the latest target whether sent or not until the NMT has got there
+	private int pending = -1;
+	private int latest = -1;
+	// A send is waiting out the window or its turn on the NMT, or the NMT is carrying it out
+	private boolean queued = false;
+	private boolean inFlight = false;
+
+	private Runnable queue = new Runnable() {
+		public void run() {
+			submit( new Callable< Void >() {
+				public Void call() throws Exception {
+					sendLatest();
+					return null;
+				}
+			} );
+		}
+	};
+
+	public SeekCoalescer( NetworkedMediaTank nmt, String name, ScheduledExecutorService scheduler, long window, Listener listener ) {
+		this.nmt = nmt;
+		this.scheduler = scheduler;
+		this.window = window;
+		this.listener = listener;
+		sent = sentSeeks.get( name );
+		superseded = supersededSeeks.get( name );
+	}
+
+	/**
+	 * Seeks to the given position, replacing any seek that hasn't been sent yet.
+	 */
+	public synchronized void seekTo( int seconds ) {
+		if ( pending >= 0 ) {
+			superseded.incrementAndGet();
+		}
+		pending = seconds;
+		latest = seconds;
+		if ( !queued && !inFlight ) {
+			queued = true;
+			scheduler.schedule( queue, window, TimeUnit.MILLISECONDS );
+		}
+	}
+
+	/**
+	 * Seeks forward or back from the latest target, or from the current position when no seek is under way.
+	 *
+	 * @param current where the NMT last said it was, in seconds
+	 * @param duration the length of what's playing in seconds, 0 if it isn't known
+	 */
+	public synchronized void step( int seconds, int current, int duration ) {
+		int target = (latest >= 0 ? latest : current) + seconds;
+		if ( duration > 0 && target > duration ) {
+			target = duration;
+		}
+		seekTo( Math.max( 0, target ) );
+	}
+
+	/**
+	 * Drops a seek that hasn't been sent, for when something else is played or playback stops.
+	 */
+	public synchronized void cancel() {
+		if ( pending >= 0 ) {
+			superseded.incrementAndGet();
+		}
+		pending = -1;
+		latest = -1;
+	}
+
+	/**
+	 * @return true if no seek is waiting, being carried out or still taken as the position
+	 */
+	public synchronized boolean isIdle() {
+		return latest < 0 && !queued && !inFlight;
+	}
+
+	/**
+	 * Queues the send on the NMT's interactive lane, where it goes ahead of the status polls.
+	 */
+	protected void submit( Callable< Void > send ) {
+		nmt.getScheduler().submit( Lane.INTERACTIVE, send );
+	}
+
+	/**
+	 * @return true if the NMT accepted the seek
+	 */
+	protected boolean send( String timestamp ) throws Exception {
+		Element result = nmt.runCommand( "playback", "set_time_seek_vod", timestamp );
+		Element returnValue = result.getFirstChildElement( "returnValue" );
+		return returnValue == null || returnValue.getValue().equals( "0" );
+	}
+
+	private void sendLatest() {
+		int target;
+		synchronized ( this ) {
+			target = pending;
+			pending = -1;
+			queued = false;
+			inFlight = target >= 0;
+		}
+		if ( target < 0 ) {
+			return;
+		}
+
+		boolean accepted = false;
+		try {
+			sent.incrementAndGet();
+			accepted = send( getTimestamp( target ) );
+			if ( !accepted ) {
+				logger.warning( "The NMT didn't accept a seek to " + getTimestamp( target ) );
+			}
+		} catch ( Exception ex ) {
+			ExceptionLogger.log( logger, ex );
+		} finally {
+			synchronized ( this ) {
+				inFlight = false;
+				if ( pending >= 0 ) {
+					// Whatever came in while the NMT was busy has had its window already
+					queued = true;
+					scheduler.execute( queue );
+				}
+			}
+		}
+		if ( listener != null ) {
+			listener.seeked( target, accepted );
+		}
+		// Steps can go back to starting from the position once the listener has had a chance to record where the NMT went
+		synchronized ( this ) {
+			if ( pending < 0 && !queued && !inFlight ) {
+				latest = -1;
+			}
+		}
+	}
+
+	public static String getTimestamp( int offset ) {
+		int seconds = offset % 60;
+		offset = offset / 60;
+		int minutes = offset % 60;
+		int hours = offset / 60;
+
+		return String.format( "%02d:%02d:%02d", hours, minutes, seconds );
+	}
+}
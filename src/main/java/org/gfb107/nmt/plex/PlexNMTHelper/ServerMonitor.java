@@ -0,0 +1,203 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Keeps track of every PLEX server on the network and which of them answer. Each server is asked for its identity every interval and
+ * ranked by how quickly it answers; discovery is repeated now and then to pick up servers that started later. When the server in use
+ * stops answering, every registered {@link PlexServer} is switched to the quickest one that still does.
+ */
+public class ServerMonitor implements Runnable {
+	private Logger logger = Logger.getLogger( ServerMonitor.class.getName() );
+
+	// A server is given up on after this many checks in a row without an answer
+	private static final int failureLimit = 2;
+
+	// Discovery is repeated every this many checks
+	private static final int discoveryEvery = 10;
+
+	private GDMDiscovery discovery;
+	private CloseableHttpClient client;
+	private RequestConfig requestConfig;
+	private long discoveryWindow;
+
+	private List< Candidate > candidates = new CopyOnWriteArrayList< Candidate >();
+	private List< PlexServer > servers = new CopyOnWriteArrayList< PlexServer >();
+	private volatile Candidate current = null;
+	private int runs = 0;
+
+	// Opened once a server is in use or the first discovery is over, whichever comes first
+	private CountDownLatch ready = new CountDownLatch( 1 );
+
+	public ServerMonitor( GDMDiscovery discovery, CloseableHttpClient client, int timeout, long discoveryWindow ) {
+		this.discovery = discovery;
+		this.client = client;
+		this.discoveryWindow = discoveryWindow;
+		requestConfig = RequestConfig.custom().setConnectTimeout( timeout ).setSocketTimeout( timeout ).setConnectionRequestTimeout( timeout )
+				.build();
+	}
+
+	/**
+	 * Runs discovery, checks every server found and picks the quickest. Until a server is in use, the first to answer is checked and
+	 * used straight away, so devices waiting for one don't have to wait out the discovery window.
+	 */
+	public synchronized void discover() {
+		try {
+			for ( PlexServer server : discovery.discoverAll( discoveryWindow, new GDMDiscovery.Listener() {
+				public void found( PlexServer server ) {
+					if ( current == null ) {
+						add( server );
+						check();
+					}
+				}
+			} ) ) {
+				add( server );
+			}
+			check();
+		} finally {
+			ready.countDown();
+		}
+	}
+
+	/**
+	 * Waits for a server to be in use, or for the first discovery to find none.
+	 *
+	 * @return the server in use, or null if none has answered
+	 */
+	public PlexServer awaitCurrent() throws InterruptedException {
+		ready.await();
+		return getCurrent();
+	}
+
+	public synchronized void add( PlexServer server ) {
+		for ( Candidate candidate : candidates ) {
+			if ( candidate.server.getIdentifier().equals( server.getIdentifier() ) ) {
+				return;
+			}
+		}
+		candidates.add( new Candidate( server ) );
+	}
+
+	/**
+	 * @return the server in use, or null if none has answered yet
+	 */
+	public PlexServer getCurrent() {
+		Candidate candidate = current;
+		return candidate == null ? null : candidate.server;
+	}
+
+	/**
+	 * Registers a device's server, which will be switched along with the others.
+	 */
+	public void register( PlexServer server ) {
+		servers.add( server );
+	}
+
+	/**
+	 * Starts checking the servers every interval. Discovery and the checks block for as long as their timeouts, so they're run on a
+	 * thread of their own rather than holding up the now playing monitors.
+	 */
+	public void start( long interval ) {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+			public Thread newThread( Runnable runnable ) {
+				Thread thread = new Thread( runnable, "ServerMonitor" );
+				thread.setDaemon( true );
+				return thread;
+			}
+		} );
+		scheduler.scheduleWithFixedDelay( this, interval, interval, TimeUnit.MILLISECONDS );
+	}
+
+	public synchronized void run() {
+		try {
+			if ( ++runs % discoveryEvery == 0 || candidates.isEmpty() ) {
+				for ( PlexServer server : discovery.discoverAll( discoveryWindow ) ) {
+					add( server );
+				}
+			}
+			check();
+		} catch ( Exception ex ) {
+			ExceptionLogger.log( logger, ex );
+		}
+	}
+
+	private void check() {
+		Candidate best = null;
+		for ( Candidate candidate : candidates ) {
+			candidate.check();
+			if ( candidate.isHealthy() && (best == null || candidate.latency < best.latency) ) {
+				best = candidate;
+			}
+		}
+
+		if ( current != null && current.isHealthy() ) {
+			return;
+		}
+		if ( best == null ) {
+			if ( current != null ) {
+				logger.warning( "No PLEX server is answering" );
+			}
+			return;
+		}
+
+		current = best;
+		ready.countDown();
+		logger.info( "Using PLEX server '" + best.server.getName() + "' at " + best.server.getAddress() + ':' + best.server.getPort() + ", "
+				+ best.latency + "ms" );
+		for ( PlexServer server : servers ) {
+			if ( !server.getIdentifier().equals( best.server.getIdentifier() ) ) {
+				server.switchTo( best.server );
+			}
+		}
+	}
+
+	private class Candidate {
+		private PlexServer server;
+		private long latency = Long.MAX_VALUE;
+		private int failures = failureLimit;
+
+		private Candidate( PlexServer server ) {
+			this.server = server;
+		}
+
+		private boolean isHealthy() {
+			return failures < failureLimit;
+		}
+
+		private void check() {
+			HttpGet get = new HttpGet( "http://" + server.getAddress() + ':' + server.getPort() + "/identity" );
+			get.setConfig( requestConfig );
+			long start = System.nanoTime();
+			try {
+				CloseableHttpResponse response = client.execute( get );
+				try {
+					if ( response.getStatusLine().getStatusCode() != 200 ) {
+						throw new IllegalStateException( response.getStatusLine().toString() );
+					}
+				} finally {
+					HttpTransport.release( response );
+				}
+				long elapsed = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+				latency = latency == Long.MAX_VALUE ? elapsed : latency + (elapsed - latency) / 4;
+				failures = 0;
+			} catch ( Exception ex ) {
+				if ( failures < failureLimit && ++failures == failureLimit ) {
+					logger.warning( "PLEX server '" + server.getName() + "' at " + server.getAddress() + ':' + server.getPort()
+							+ " isn't answering: " + ex );
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,402 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Records what a device is playing and who's subscribed, so a restarted helper can pick up where it left off. Records are appended to
+ * a memory-mapped file, which costs no more than a memory copy, and the file is forced to disk at most once per sync interval.
+ * <p>
+ * The file has two halves. Each starts with a header holding a magic number and an epoch, followed by records, each a length, a CRC
+ * and the data. When one half fills up, the current session is written afresh to the other with the next epoch, and the header is
+ * written last. Replay takes the valid half with the latest epoch and reads up to the first record that's incomplete or damaged, so a
+ * crash at any point leaves either the old session or the new one. A change that would leave the session too big for a half is logged
+ * and not recorded.
+ */
+public class SessionJournal {
+	private static Logger logger = Logger.getLogger( SessionJournal.class.getName() );
+
+	private static final int magic = 0x504e4a31;
+	private static final int headerSize = 8;
+	private static final int recordHeaderSize = 8;
+
+	private static final byte queueRecord = 'Q';
+	private static final byte positionRecord = 'P';
+	private static final byte clearRecord = 'C';
+	private static final byte subscribeRecord = 'S';
+	private static final byte unsubscribeRecord = 'U';
+
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+	private int halfSize;
+	private int half;
+	private int epoch;
+	private boolean dirty = false;
+
+	private Session session = new Session();
+
+	/**
+	 * Opens the journal, creating it if need be, and replays whatever it holds.
+	 *
+	 * @param halfSize bytes in each half of the file
+	 */
+	public SessionJournal( File path, int halfSize ) throws IOException {
+		this.halfSize = halfSize;
+		File parent = path.getAbsoluteFile().getParentFile();
+		if ( parent != null && !parent.exists() && !parent.mkdirs() ) {
+			throw new IOException( "Unable to create " + parent );
+		}
+		file = new RandomAccessFile( path, "rw" );
+		buffer = file.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, 2 * halfSize );
+
+		int first = getEpoch( 0 );
+		int second = getEpoch( 1 );
+		if ( first < 0 && second < 0 ) {
+			half = 1;
+			epoch = 0;
+			compact( session );
+		} else {
+			half = second > first ? 1 : 0;
+			epoch = Math.max( first, second );
+			replay();
+		}
+	}
+
+	/**
+	 * @return the session as it was when the journal was opened, kept up to date with whatever's been recorded since
+	 */
+	public synchronized Session getSession() {
+		return session.copy();
+	}
+
+	/**
+	 * Records the item started from a play queue, with the file the NMT was given for it.
+	 */
+	public synchronized void queue( String containerKey, int offset, String type, String key, String playFile ) {
+		append( queueRecord, containerKey, Integer.toString( offset ), type, key, playFile );
+	}
+
+	public synchronized void position( String key, String state, int time ) {
+		if ( session.containerKey != null && key.equals( session.key ) ) {
+			append( positionRecord, key, state, Integer.toString( time ) );
+		}
+	}
+
+	/**
+	 * Records that playback was stopped, so there's nothing to go back to.
+	 */
+	public synchronized void clear() {
+		if ( session.containerKey != null ) {
+			append( clearRecord );
+		}
+	}
+
+	public synchronized void subscribe( String clientId, String commandId, String address, int port ) {
+		// Controllers renew their subscriptions every so often, there's nothing to record unless something changed
+		Subscription current = session.subscriptions.get( clientId );
+		if ( current != null && current.address.equals( address ) && current.port == port
+				&& (current.commandId == null ? commandId == null : current.commandId.equals( commandId )) ) {
+			return;
+		}
+		append( subscribeRecord, clientId, commandId == null ? "" : commandId, address, Integer.toString( port ) );
+	}
+
+	public synchronized void unsubscribe( String clientId ) {
+		if ( session.subscriptions.containsKey( clientId ) ) {
+			append( unsubscribeRecord, clientId );
+		}
+	}
+
+	/**
+	 * Writes anything recorded since the last time out to disk.
+	 */
+	public synchronized void force() {
+		if ( dirty ) {
+			buffer.force();
+			dirty = false;
+		}
+	}
+
+	public void startSync( ScheduledExecutorService scheduler, long interval ) {
+		scheduler.scheduleWithFixedDelay( new Runnable() {
+			public void run() {
+				try {
+					force();
+				} catch ( Exception ex ) {
+					ExceptionLogger.log( logger, ex );
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS );
+	}
+
+	public synchronized void close() throws IOException {
+		force();
+		file.close();
+	}
+
+	private void append( byte type, String... fields ) {
+		byte[] data = encode( type, fields );
+		if ( buffer.position() + recordHeaderSize + data.length + 4 <= (half + 1) * halfSize ) {
+			apply( session, type, fields );
+			write( data );
+		} else {
+			Session next = session.copy();
+			apply( next, type, fields );
+			if ( !compact( next ) ) {
+				logger.warning( "Session journal is full, not recording " + (char) type + " record for " + fields[0] );
+				return;
+			}
+			session = next;
+		}
+		dirty = true;
+	}
+
+	// The terminating zero length goes in before the record's length, so a reader never sees a length without its data
+	private void write( byte[] data ) {
+		int start = buffer.position();
+		buffer.position( start + recordHeaderSize );
+		buffer.put( data );
+		buffer.putInt( 0 );
+		CRC32 crc = new CRC32();
+		crc.update( data );
+		buffer.putInt( start + 4, (int) crc.getValue() );
+		buffer.putInt( start, data.length );
+		buffer.position( buffer.position() - 4 );
+	}
+
+	// Writes the session to the other half and only then makes it current. Nothing's written if it won't fit in a half.
+	private boolean compact( Session session ) {
+		List< byte[] > records = new ArrayList< byte[] >();
+		if ( session.containerKey != null ) {
+			records.add( encode( queueRecord, session.containerKey, Integer.toString( session.offset ), session.type, session.key,
+					session.playFile ) );
+			if ( session.state != null ) {
+				records.add( encode( positionRecord, session.key, session.state, Integer.toString( session.time ) ) );
+			}
+		}
+		for ( Subscription subscription : session.subscriptions.values() ) {
+			String commandId = subscription.commandId == null ? "" : subscription.commandId;
+			records.add( encode( subscribeRecord, subscription.clientId, commandId, subscription.address, Integer.toString( subscription.port ) ) );
+		}
+		int size = headerSize + 4;
+		for ( byte[] record : records ) {
+			size += recordHeaderSize + record.length;
+		}
+		if ( size > halfSize ) {
+			return false;
+		}
+
+		int other = 1 - half;
+		buffer.position( other * halfSize + headerSize );
+		buffer.putInt( other * halfSize + headerSize, 0 );
+		for ( byte[] record : records ) {
+			write( record );
+		}
+		int position = buffer.position();
+		buffer.force();
+
+		buffer.putInt( other * halfSize + 4, epoch + 1 );
+		buffer.putInt( other * halfSize, magic );
+		buffer.force();
+		buffer.position( position );
+		half = other;
+		++epoch;
+		dirty = false;
+		return true;
+	}
+
+	private int getEpoch( int half ) {
+		return buffer.getInt( half * halfSize ) == magic ? buffer.getInt( half * halfSize + 4 ) : -1;
+	}
+
+	private void replay() throws IOException {
+		int position = half * halfSize + headerSize;
+		int end = (half + 1) * halfSize;
+		while ( position + recordHeaderSize <= end ) {
+			int length = buffer.getInt( position );
+			if ( length <= 0 || position + recordHeaderSize + length > end ) {
+				break;
+			}
+			byte[] data = new byte[length];
+			buffer.position( position + recordHeaderSize );
+			buffer.get( data );
+			CRC32 crc = new CRC32();
+			crc.update( data );
+			if ( (int) crc.getValue() != buffer.getInt( position + 4 ) ) {
+				logger.warning( "Session journal record at " + position + " is damaged, replaying up to it" );
+				break;
+			}
+			DataInputStream in = new DataInputStream( new ByteArrayInputStream( data ) );
+			byte type = in.readByte();
+			String[] fields = new String[in.readByte()];
+			for ( int i = 0; i < fields.length; ++i ) {
+				fields[i] = in.readUTF();
+			}
+			apply( session, type, fields );
+			position += recordHeaderSize + length;
+		}
+		buffer.position( position );
+		// Whatever follows a damaged record is left over from before, it's written over from here
+		if ( position + 4 <= end ) {
+			buffer.putInt( position, 0 );
+		}
+	}
+
+	private static byte[] encode( byte type, String... fields ) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream( 64 );
+			DataOutputStream out = new DataOutputStream( bytes );
+			out.writeByte( type );
+			out.writeByte( fields.length );
+			for ( String field : fields ) {
+				out.writeUTF( field == null ? "" : field );
+			}
+			out.close();
+			return bytes.toByteArray();
+		} catch ( IOException ex ) {
+			// Can't happen writing to memory
+			throw new IllegalStateException( ex );
+		}
+	}
+
+	private static void apply( Session session, byte type, String[] fields ) {
+		if ( type == queueRecord ) {
+			session.containerKey = fields[0];
+			session.offset = Integer.parseInt( fields[1] );
+			session.type = fields[2];
+			session.key = fields[3];
+			session.playFile = fields[4];
+			session.state = null;
+			session.time = 0;
+		} else if ( type == positionRecord ) {
+			if ( fields[0].equals( session.key ) ) {
+				session.state = fields[1];
+				session.time = Integer.parseInt( fields[2] );
+			}
+		} else if ( type == clearRecord ) {
+			session.containerKey = null;
+			session.key = null;
+			session.state = null;
+		} else if ( type == subscribeRecord ) {
+			session.subscriptions.remove( fields[0] );
+			session.subscriptions.put( fields[0], new Subscription( fields[0], fields[1].length() == 0 ? null : fields[1], fields[2],
+					Integer.parseInt( fields[3] ) ) );
+		} else if ( type == unsubscribeRecord ) {
+			session.subscriptions.remove( fields[0] );
+		}
+	}
+
+	/**
+	 * What a device was doing: the play queue and item it was playing, and where, and the controllers subscribed to it.
+	 */
+	public static class Session {
+		private String containerKey;
+		private int offset;
+		private String type;
+		private String key;
+		private String playFile;
+		private String state;
+		private int time;
+		private Map< String, Subscription > subscriptions = new LinkedHashMap< String, Subscription >();
+
+		/**
+		 * @return the play queue's container key, or null if nothing was playing
+		 */
+		public String getContainerKey() {
+			return containerKey;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+
+		/**
+		 * @return the type of the item playing, {@link Video#type} or {@link Track#type}
+		 */
+		public String getType() {
+			return type;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public String getPlayFile() {
+			return playFile;
+		}
+
+		/**
+		 * @return the last state recorded for the item, null if none was
+		 */
+		public String getState() {
+			return state;
+		}
+
+		public int getTime() {
+			return time;
+		}
+
+		public Collection< Subscription > getSubscriptions() {
+			return subscriptions.values();
+		}
+
+		private Session copy() {
+			Session copy = new Session();
+			copy.containerKey = containerKey;
+			copy.offset = offset;
+			copy.type = type;
+			copy.key = key;
+			copy.playFile = playFile;
+			copy.state = state;
+			copy.time = time;
+			copy.subscriptions.putAll( subscriptions );
+			return copy;
+		}
+	}
+
+	public static class Subscription {
+		private String clientId;
+		private String commandId;
+		private String address;
+		private int port;
+
+		private Subscription( String clientId, String commandId, String address, int port ) {
+			this.clientId = clientId;
+			this.commandId = commandId;
+			this.address = address;
+			this.port = port;
+		}
+
+		public String getClientId() {
+			return clientId;
+		}
+
+		public String getCommandId() {
+			return commandId;
+		}
+
+		public String getAddress() {
+			return address;
+		}
+
+		public int getPort() {
+			return port;
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Times one phase of starting up, such as discovery or a device's MAC address lookup. Each phase is logged as it ends, and recorded
+ * for /metrics by device and phase.
+ */
+public class StartupTimer {
+	private static Logger logger = Logger.getLogger( StartupTimer.class.getName() );
+
+	private static final Metrics.Family< Histogram > phaseTimes = Metrics.histograms( "startup_phase_seconds", "device", "phase",
+			"Time taken by each phase of starting up" );
+
+	private String name;
+	private String phase;
+	private long start = System.nanoTime();
+
+	/**
+	 * @param name what the phase is for, a device's name or null for the helper as a whole
+	 */
+	public StartupTimer( String name, String phase ) {
+		this.name = name;
+		this.phase = phase;
+	}
+
+	/**
+	 * @return how long the phase took in milliseconds
+	 */
+	public long stop() {
+		long took = System.nanoTime() - start;
+		phaseTimes.get( name, phase ).recordNanos( took );
+		long millis = TimeUnit.NANOSECONDS.toMillis( took );
+		logger.info( (name == null ? "" : name + ": ") + phase + " took " + millis + "ms" );
+		return millis;
+	}
+}
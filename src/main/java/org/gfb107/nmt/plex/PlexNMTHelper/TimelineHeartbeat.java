@@ -0,0 +1,55 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which of the monitor's timeline updates a target is sent. Anything the target can't work out for itself goes straight
+ * away: a different item, a new state, a new duration or a seek. An update that only moves the position along with steady playback
+ * is held back until the heartbeat interval has passed since the last one sent. Stopping is a change of state, so the final position
+ * always goes out.
+ * <p>
+ * An update only counts as sent once the caller says it was. One that was skipped or failed is forgotten with {@link #reset()}, so
+ * the next goes out whatever it is and a lost stop doesn't leave the target thinking playback goes on.
+ */
+public class TimelineHeartbeat {
+	private static final Metrics.Family< AtomicLong > heldBack = Metrics.counters( "timeline_updates_held_total", "device", "target",
+			"Timeline updates not sent because only the position moved on since the last heartbeat" );
+
+	private long interval;
+	private AtomicLong held;
+
+	// What was last sent, and when
+	private TimelinePosition last = new TimelinePosition();
+
+	/**
+	 * @param device the device sending the updates, for the count of updates held back
+	 * @param target the kind of target, also for the count
+	 * @param interval milliseconds between updates during steady playback
+	 */
+	public TimelineHeartbeat( String device, String target, long interval ) {
+		this.interval = interval;
+		held = heldBack.get( device, target );
+	}
+
+	/**
+	 * @return true if the update should be sent, call {@link #sent} once it has been
+	 */
+	public synchronized boolean isDue( Playable playable, String state, Playable.Progress progress, long now ) {
+		if ( !last.isChange( playable, state, progress, now ) && now - last.getAt() < interval ) {
+			held.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	public synchronized void sent( Playable playable, String state, Playable.Progress progress, long now ) {
+		last.set( playable, state, progress, now );
+	}
+
+	/**
+	 * Forgets what was sent, so the next update goes out whatever it is. For a target that may not have had the last one.
+	 */
+	public synchronized void reset() {
+		last.reset();
+	}
+}
@@ -0,0 +1,145 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Long polling for /player/timeline/poll. The timeline has a version that advances when something a controller can't work out for
+ * itself changes: a different item, a new state, a new duration or a seek. Steady playback doesn't count, controllers move the
+ * position along on their own. A controller polling with wait=1 gets an answer right away if it hasn't seen the current version yet,
+ * otherwise its request is parked, without a thread, until the version advances or the timeout passes.
+ */
+public class TimelinePoll {
+	private Logger logger = Logger.getLogger( TimelinePoll.class.getName() );
+
+	private static final int maximumClients = 64;
+
+	private ScheduledExecutorService scheduler;
+	private long timeout;
+
+	private long version = 1;
+	private List< Waiter > waiting = new ArrayList< Waiter >();
+
+	private Map< String, Long > seen = new LinkedHashMap< String, Long >() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry< String, Long > eldest ) {
+			return size() > maximumClients;
+		}
+	};
+
+	private TimelinePosition track = new TimelinePosition();
+	private TimelinePosition video = new TimelinePosition();
+
+	public TimelinePoll( ScheduledExecutorService scheduler, long timeout ) {
+		this.scheduler = scheduler;
+		this.timeout = timeout;
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	public synchronized int getWaiting() {
+		return waiting.size();
+	}
+
+	/**
+	 * Called after every look at the NMT with the track and video now being shown. Advances the version if either changed.
+	 */
+	public void update( Track track, Video video ) {
+		long now = System.currentTimeMillis();
+		boolean changed;
+		synchronized ( this ) {
+			changed = update( this.track, track, now ) | update( this.video, video, now );
+		}
+		if ( changed ) {
+			advance();
+		}
+	}
+
+	// The progress is taken once, so the state, time and duration compared and kept belong together
+	private static boolean update( TimelinePosition position, Playable playable, long now ) {
+		Playable.Progress progress = playable == null ? null : playable.getProgress();
+		return position.update( playable, progress == null ? null : progress.getState(), progress, now );
+	}
+
+	/**
+	 * Advances the version and answers every parked poll.
+	 */
+	public void advance() {
+		List< Waiter > ready;
+		synchronized ( this ) {
+			version++;
+			if ( waiting.isEmpty() ) {
+				return;
+			}
+			ready = waiting;
+			waiting = new ArrayList< Waiter >();
+		}
+		logger.finer( "Timeline version " + version + ", answering " + ready.size() + " polls" );
+		for ( Waiter waiter : ready ) {
+			scheduler.execute( waiter );
+		}
+	}
+
+	/**
+	 * Answers the waiter now if the client hasn't seen the current version, otherwise parks it.
+	 */
+	public void poll( String clientId, Waiter waiter ) {
+		synchronized ( this ) {
+			Long last = clientId == null ? null : seen.get( clientId );
+			if ( last != null && last.longValue() == version ) {
+				waiter.poll = this;
+				waiter.clientId = clientId;
+				waiting.add( waiter );
+				waiter.timeout = scheduler.schedule( waiter, timeout, TimeUnit.MILLISECONDS );
+				return;
+			}
+		}
+		waiter.poll = this;
+		waiter.clientId = clientId;
+		waiter.run();
+	}
+
+	private synchronized long answered( Waiter waiter ) {
+		waiting.remove( waiter );
+		if ( waiter.clientId != null ) {
+			seen.put( waiter.clientId, version );
+		}
+		return version;
+	}
+
+	/**
+	 * A parked poll. Runs once, either when the version advances or when the poll times out.
+	 */
+	public static abstract class Waiter implements Runnable {
+		private AtomicBoolean done = new AtomicBoolean( false );
+		private TimelinePoll poll;
+		private String clientId;
+		private ScheduledFuture< ? > timeout;
+
+		public final void run() {
+			if ( !done.compareAndSet( false, true ) ) {
+				return;
+			}
+			if ( timeout != null ) {
+				timeout.cancel( false );
+			}
+			answer( poll.answered( this ) );
+		}
+
+		/**
+		 * Sends the timeline as it is now.
+		 */
+		protected abstract void answer( long version );
+	}
+}
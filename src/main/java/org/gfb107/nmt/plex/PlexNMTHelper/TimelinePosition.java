@@ -0,0 +1,70 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+/**
+ * The last timeline a target was given, used to tell whether a newer one has anything in it the target can't work out for itself: a
+ * different item, a new state, a new duration or a seek. Steady playback doesn't count, the target moves the position along on its own.
+ * Used by {@link TimelinePoll} and {@link TimelineHeartbeat}, which synchronize access to it.
+ */
+class TimelinePosition {
+	// How far the position may drift from where steady playback would have put it before it's taken as a seek
+	private static final long seekTolerance = 2000;
+
+	private Playable playable = null;
+	private String state;
+	private int time;
+	private int duration;
+	private long at;
+
+	/**
+	 * @param progress the playable's progress, taken once by the caller; null if nothing's playing
+	 */
+	public boolean isChange( Playable playable, String state, Playable.Progress progress, long now ) {
+		if ( playable != this.playable ) {
+			return true;
+		}
+		if ( playable == null ) {
+			return false;
+		}
+		if ( (this.state == null ? state != null : !this.state.equals( state )) || progress.getDuration() != duration ) {
+			return true;
+		}
+		long expected = "playing".equals( this.state ) ? time + now - at : time;
+		return Math.abs( progress.getCurrentTime() - expected ) > seekTolerance;
+	}
+
+	/**
+	 * Takes the timeline as given.
+	 */
+	public void set( Playable playable, String state, Playable.Progress progress, long now ) {
+		this.playable = playable;
+		if ( progress != null ) {
+			this.state = state;
+			time = progress.getCurrentTime();
+			duration = progress.getDuration();
+		}
+		at = now;
+	}
+
+	/**
+	 * @return true if it's a change, either way it's taken as given
+	 */
+	public boolean update( Playable playable, String state, Playable.Progress progress, long now ) {
+		boolean changed = isChange( playable, state, progress, now );
+		set( playable, state, progress, now );
+		return changed;
+	}
+
+	/**
+	 * Forgets what was given, so whatever comes next is a change.
+	 */
+	public void reset() {
+		playable = null;
+	}
+
+	/**
+	 * @return when the timeline was last given
+	 */
+	public long getAt() {
+		return at;
+	}
+}
@@ -0,0 +1,117 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.http.client.config.RequestConfig;
+
+/**
+ * Delivers timeline updates to the Plex server and to subscribed controllers on a bounded pool of threads, so the now playing monitor
+ * never waits on the network. Each target has a {@link Mailbox} that holds at most one pending message per key; a newer message
+ * replaces an undelivered older one, so a slow target only ever receives the latest state.
+ */
+public class TimelinePublisher {
+	private Logger logger = Logger.getLogger( TimelinePublisher.class.getName() );
+
+	private ThreadPoolExecutor executor;
+	private RequestConfig requestConfig;
+
+	private AtomicLong dropped = new AtomicLong();
+
+	public TimelinePublisher( int threads, int queueSize, int timeout ) {
+		executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue< Runnable >( queueSize ),
+				new ThreadFactory() {
+					private AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread( Runnable runnable ) {
+						Thread thread = new Thread( runnable, "TimelinePublisher-" + count.incrementAndGet() );
+						thread.setDaemon( true );
+						return thread;
+					}
+				} );
+		executor.allowCoreThreadTimeOut( true );
+
+		requestConfig = RequestConfig.custom().setConnectTimeout( timeout ).setSocketTimeout( timeout ).setConnectionRequestTimeout( timeout )
+				.build();
+	}
+
+	/**
+	 * @return the timeouts to apply to every timeline request, so one unreachable target can only hold a thread this long
+	 */
+	public RequestConfig getRequestConfig() {
+		return requestConfig;
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return false if the update was dropped because the publisher is saturated
+	 */
+	public < T > boolean publish( Mailbox< T > mailbox, Object key, T message ) {
+		synchronized ( mailbox ) {
+			mailbox.pending.remove( key );
+			mailbox.pending.put( key, message );
+			if ( mailbox.scheduled ) {
+				return true;
+			}
+			mailbox.scheduled = true;
+		}
+
+		try {
+			executor.execute( mailbox );
+		} catch ( RejectedExecutionException ex ) {
+			synchronized ( mailbox ) {
+				mailbox.pending.clear();
+				mailbox.scheduled = false;
+			}
+			dropped.incrementAndGet();
+			logger.warning( "Timeline publisher is saturated, dropped update for " + mailbox );
+			return false;
+		}
+		return true;
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public static abstract class Mailbox< T > implements Runnable {
+		private Logger logger = Logger.getLogger( Mailbox.class.getName() );
+		private Map< Object, T > pending = new LinkedHashMap< Object, T >();
+		private boolean scheduled = false;
+
+		protected abstract void deliver( T message ) throws Exception;
+
+		public void run() {
+			while ( true ) {
+				T message;
+				synchronized ( this ) {
+					Iterator< T > iterator = pending.values().iterator();
+					if ( !iterator.hasNext() ) {
+						scheduled = false;
+						return;
+					}
+					message = iterator.next();
+					iterator.remove();
+				}
+
+				try {
+					deliver( message );
+				} catch ( Exception ex ) {
+					logger.warning( "Unable to deliver timeline to " + this + ": " + ex.getClass().getName() + ": " + ex.getMessage() );
+				}
+			}
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package org.gfb107.nmt.plex.PlexNMTHelper;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,9 +17,9 @@ import org.apache.http.StatusLine;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.util.EntityUtils;
 
 public class TimelineSubscriber {
 	private Logger logger = Logger.getLogger( TimelineSubscriber.class.getName() );
@@ -30,6 +31,35 @@ public class TimelineSubscriber {
 	private String postUrl;
 	private PlexServer server;
 	private CloseableHttpClient client;
+	private TimelinePublisher publisher;
+
+	private TimelineWriter writer;
+
+	// A controller that left the network would otherwise cost a connect timeout on every update
+	private CircuitBreaker breaker = new CircuitBreaker( 3, 5000, 120000 );
+	private volatile long lastSeen = System.currentTimeMillis();
+	private TimelineHeartbeat heartbeat = new TimelineHeartbeat( null, "subscriber", 5000 );
+	private long heartbeatInterval = 5000;
+
+	private static final Metrics.Family< AtomicLong > skippedPosts = Metrics.counters( "timeline_posts_skipped_total", "device",
+			"Timeline updates not sent to controllers that weren't answering" );
+
+	private static final Metrics.Family< Histogram > postTimes = Metrics.histograms( "timeline_post_seconds", "device",
+			"Time taken by controllers to accept a timeline" );
+
+	private static final ContentType contentType = ContentType.create( "text/plain", "UTF-8" );
+
+	private TimelinePublisher.Mailbox< byte[] > mailbox = new TimelinePublisher.Mailbox< byte[] >() {
+		@Override
+		protected void deliver( byte[] xml ) throws Exception {
+			send( xml );
+		}
+
+		@Override
+		public String toString() {
+			return postUrl;
+		}
+	};
 
 	public TimelineSubscriber( String commandId, String address, int port, PlexServer server ) {
 		this.commandId = commandId;
@@ -44,9 +74,36 @@ public class TimelineSubscriber {
 		this.client = client;
 	}
 
+	public void setPublisher( TimelinePublisher publisher ) {
+		this.publisher = publisher;
+	}
+
 	public void setClient( String clientId, String clientName ) {
 		this.clientId = clientId;
 		this.clientName = clientName;
+		heartbeat = new TimelineHeartbeat( clientName, "subscriber", heartbeatInterval );
+	}
+
+	/**
+	 * Shares a writer between subscribers, so a timeline is rendered once and only the subscriber's own values are filled in for each.
+	 */
+	public void setWriter( TimelineWriter writer ) {
+		this.writer = writer;
+	}
+
+	private TimelineWriter getWriter() {
+		if ( writer == null ) {
+			writer = new TimelineWriter( clientId, server );
+		}
+		return writer;
+	}
+
+	/**
+	 * Sets how often in milliseconds the controller is sent a timeline during steady playback, changes are sent straight away.
+	 */
+	public void setHeartbeat( long interval ) {
+		heartbeatInterval = interval;
+		heartbeat = new TimelineHeartbeat( clientName, "subscriber", interval );
 	}
 
 	public String getCommandId() {
@@ -57,6 +114,24 @@ public class TimelineSubscriber {
 		this.commandId = commandId;
 	}
 
+	/**
+	 * Records that the controller was heard from, which keeps its subscription alive.
+	 */
+	public void touch() {
+		lastSeen = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return true if the controller hasn't been heard from for longer than the timeout
+	 */
+	public boolean isExpired( long now, long timeout ) {
+		return now - lastSeen > timeout;
+	}
+
+	public CircuitBreaker.State getBreakerState() {
+		return breaker.getState();
+	}
+
 	public String getAddress() {
 		return address;
 	}
@@ -69,42 +144,65 @@ public class TimelineSubscriber {
 		return postUrl;
 	}
 
-	public Element updateTimeline( Playable playable ) throws ValidityException, IllegalStateException, ClientProtocolException, ParsingException,
+	public void updateTimeline( Playable playable ) throws ValidityException, IllegalStateException, ClientProtocolException, ParsingException,
 			IOException {
-		if ( playable.getType() == Video.type ) {
-			return updateTimeline( (Video) playable, playable.getState() );
-		} else {
-			return updateTimeline( (Track) playable, playable.getState() );
-		}
+		Playable.Progress progress = playable.getProgress();
+		updateTimeline( playable, progress, progress.getState() );
 	}
 
-	public Element updateTimeline( Track audio, String state ) throws ValidityException, IllegalStateException, ClientProtocolException,
+	public void updateTimeline( Track audio, String state ) throws ValidityException, IllegalStateException, ClientProtocolException,
 			ParsingException, IOException {
-		Element audioElement = generateTimeline( audio, state );
-
-		Element photoElement = generateEmptyTimeline( "photo" );
-
-		Element videoElement = generateEmptyTimeline( "video" );
-
-		return updateTimeline( audioElement, photoElement, videoElement );
+		updateTimeline( audio, audio.getProgress(), state );
 	}
 
-	public Element updateTimeline( Video video, String state ) throws ValidityException, IllegalStateException, ClientProtocolException,
+	public void updateTimeline( Video video, String state ) throws ValidityException, IllegalStateException, ClientProtocolException,
 			ParsingException, IOException {
-		Element audioElement = generateEmptyTimeline( "music" );
+		updateTimeline( video, video.getProgress(), state );
+	}
 
-		Element photoElement = generateEmptyTimeline( "photo" );
+	// The XML is rendered now, on the caller's thread, so the post carries the state as of this call even if it's delivered later. The
+	// progress is taken once by the caller, so the heartbeat decides on what's actually sent.
+	private void updateTimeline( Playable playable, Playable.Progress progress, String state ) throws ClientProtocolException, IOException,
+			ValidityException, IllegalStateException, ParsingException {
+		// Only updates that are due are put to the breaker, so held back ones don't use up its trial requests. One the breaker skips
+		// isn't taken as sent, so it's still due next time.
+		long now = System.currentTimeMillis();
+		if ( !heartbeat.isDue( playable, state, progress, now ) ) {
+			return;
+		}
+		if ( !breaker.allowRequest() ) {
+			skippedPosts.get( clientName ).incrementAndGet();
+			return;
+		}
+		heartbeat.sent( playable, state, progress, now );
 
-		Element videoElement = state.equals( "stopped" ) ? generateEmptyTimeline( "video" ) : generateTimeline( video, state );
+		byte[] xml = getWriter().getTemplate( playable, progress, state ).toByteArray( commandId, address, port );
 
-		return updateTimeline( audioElement, photoElement, videoElement );
+		if ( publisher != null ) {
+			if ( !publisher.publish( mailbox, this, xml ) ) {
+				heartbeat.reset();
+			}
+		} else {
+			send( xml );
+		}
 	}
 
-	private Element updateTimeline( Element audioElement, Element photoElement, Element videoElement ) throws ClientProtocolException, IOException,
-			ValidityException, IllegalStateException, ParsingException {
-
-		Document container = generateTimelineContainer( audioElement, photoElement, videoElement );
+	// Any answer at all shows the controller is there, only a failure to get one counts against it
+	private void send( byte[] xml ) throws ClientProtocolException, IOException, ValidityException, IllegalStateException, ParsingException {
+		try {
+			post( xml );
+		} catch ( IOException ex ) {
+			// The controller may not have had it, so the next update goes out whatever it is
+			heartbeat.reset();
+			if ( breaker.onFailure() ) {
+				logger.warning( "Controller at " + postUrl + " isn't answering, skipping its timelines for " + breaker.getBackoff() / 1000 + "s" );
+			}
+			throw ex;
+		}
+		breaker.onSuccess();
+	}
 
+	private Element post( byte[] xml ) throws ClientProtocolException, IOException, ValidityException, IllegalStateException, ParsingException {
 		logger.finer( "Posting to " + postUrl );
 
 		HttpPost post = new HttpPost( postUrl );
@@ -115,127 +213,67 @@ public class TimelineSubscriber {
 		post.addHeader( "X-Plex-Device-Name", clientName );
 		post.addHeader( "X-Plex-Provides", "player" );
 
-		String xml = container.toXML();
-		logger.finer( "Sending " + xml );
-
-		post.setEntity( new StringEntity( xml ) );
-
-		CloseableHttpResponse httpResponse = client.execute( post );
-		HttpEntity entity = httpResponse.getEntity();
-
-		Element response = null;
+		if ( publisher != null ) {
+			post.setConfig( publisher.getRequestConfig() );
+		}
 
-		if ( entity != null && entity.getContentType() != null && entity.getContentType().getValue().equals( "application/xml" ) ) {
-			response = new Builder().build( entity.getContent() ).getRootElement();
-		} else {
-			StatusLine statusLine = httpResponse.getStatusLine();
-			response = new Element( "Response" );
-			response.addAttribute( new Attribute( "code", Integer.toString( statusLine.getStatusCode() ) ) );
-			response.addAttribute( new Attribute( "status", statusLine.getReasonPhrase() ) );
-			EntityUtils.consume( entity );
+		if ( logger.isLoggable( Level.FINER ) ) {
+			logger.finer( "Sending " + new String( xml, "UTF-8" ) );
 		}
 
-		if ( logger.isLoggable( Level.FINE ) ) {
-			logger.fine( "Response was " + response.toXML() );
+		post.setEntity( new ByteArrayEntity( xml, contentType ) );
+
+		long start = System.nanoTime();
+		CloseableHttpResponse httpResponse = client.execute( post );
+		try {
+			HttpEntity entity = httpResponse.getEntity();
+
+			Element response = null;
+
+			if ( entity != null && entity.getContentType() != null && entity.getContentType().getValue().equals( "application/xml" ) ) {
+				response = new Builder().build( entity.getContent() ).getRootElement();
+			} else {
+				StatusLine statusLine = httpResponse.getStatusLine();
+				response = new Element( "Response" );
+				response.addAttribute( new Attribute( "code", Integer.toString( statusLine.getStatusCode() ) ) );
+				response.addAttribute( new Attribute( "status", statusLine.getReasonPhrase() ) );
+			}
+
+			if ( logger.isLoggable( Level.FINE ) ) {
+				logger.fine( "Response was " + response.toXML() );
+			}
+			return response;
+		} finally {
+			HttpTransport.release( httpResponse );
+			postTimes.get( clientName ).recordNanos( System.nanoTime() - start );
 		}
-		return response;
 	}
 
 	public Element generateTimeline( Video video ) {
-		return generateTimeline( video, video.getState() );
+		Playable.Progress progress = video.getProgress();
+		return TimelineWriter.generateTimeline( video, progress, progress.getState(), clientId, address, Integer.toString( port ) );
 	}
 
 	public Element generateTimeline( Video video, String state ) {
-		Element timeline = new Element( "Timeline" );
-		// timeline.addAttribute( new Attribute( "address", server.getAddress()
-		// ) );
-		timeline.addAttribute( new Attribute( "address", address ) );
-		// timeline.addAttribute( new Attribute( "audioStreamID",
-		// Integer.toString( video.getStream( audioStreamIndex ) ) ) );
-		timeline.addAttribute( new Attribute( "containerKey", video.getContainerKey() ) );
-		timeline.addAttribute( new Attribute( "controllable", "playPause,stop,seekTo,stepBack,stepForward" ) );
-		timeline.addAttribute( new Attribute( "duration", Integer.toString( video.getDuration() ) ) );
-		timeline.addAttribute( new Attribute( "guid", video.getGuid() ) );
-		timeline.addAttribute( new Attribute( "key", video.getKey() ) );
-		timeline.addAttribute( new Attribute( "location", video.getLocation() ) );
-		timeline.addAttribute( new Attribute( "machineIdentifier", clientId ) );
-		timeline.addAttribute( new Attribute( "mute", "0" ) );
-		// timeline.addAttribute( new Attribute( "port", Integer.toString(
-		// server.getPort() ) ) );
-		timeline.addAttribute( new Attribute( "port", Integer.toString( port ) ) );
-		timeline.addAttribute( new Attribute( "protocol", "http" ) );
-		timeline.addAttribute( new Attribute( "ratingKey", video.getRatingKey() ) );
-		timeline.addAttribute( new Attribute( "repeat", "0" ) );
-		timeline.addAttribute( new Attribute( "seekRange", "0-" + Integer.toString( video.getDuration() ) ) );
-		timeline.addAttribute( new Attribute( "shuffle", "0" ) );
-		timeline.addAttribute( new Attribute( "state", state ) );
-		timeline.addAttribute( new Attribute( "subtitleStreamID", "-1" ) );
-		timeline.addAttribute( new Attribute( "time", Integer.toString( video.getCurrentTime() ) ) );
-		timeline.addAttribute( new Attribute( "type", video.getType() ) );
-		timeline.addAttribute( new Attribute( "volume", "100" ) );
-
-		return timeline;
+		return TimelineWriter.generateTimeline( video, state, clientId, address, Integer.toString( port ) );
 	}
 
 	public Element generateTimeline( Track audio ) {
-		return generateTimeline( audio, audio.getState() );
+		Playable.Progress progress = audio.getProgress();
+		return TimelineWriter.generateTimeline( audio, progress, progress.getState(), clientId, server.getAddress(),
+				Integer.toString( server.getPort() ) );
 	}
 
 	public Element generateTimeline( Track audio, String state ) {
-		Element timeline = new Element( "Timeline" );
-		timeline.addAttribute( new Attribute( "address", server.getAddress() ) );
-		timeline.addAttribute( new Attribute( "containerKey", audio.getContainerKey() ) );
-		timeline.addAttribute( new Attribute( "controllable", "playPause,stop,skipPrevious,skipNext,seekTo,repeat" ) );
-		timeline.addAttribute( new Attribute( "duration", Integer.toString( audio.getDuration() ) ) );
-		timeline.addAttribute( new Attribute( "key", audio.getKey() ) );
-		timeline.addAttribute( new Attribute( "location", audio.getLocation() ) );
-		timeline.addAttribute( new Attribute( "machineIdentifier", clientId ) );
-		timeline.addAttribute( new Attribute( "mute", "0" ) );
-		timeline.addAttribute( new Attribute( "port", Integer.toString( server.getPort() ) ) );
-		timeline.addAttribute( new Attribute( "protocol", "http" ) );
-		timeline.addAttribute( new Attribute( "ratingKey", audio.getRatingKey() ) );
-		timeline.addAttribute( new Attribute( "repeat", "0" ) );
-		timeline.addAttribute( new Attribute( "seekRange", "0-" + Integer.toString( audio.getDuration() ) ) );
-		timeline.addAttribute( new Attribute( "shuffle", "0" ) );
-		timeline.addAttribute( new Attribute( "state", state ) );
-		timeline.addAttribute( new Attribute( "time", Integer.toString( audio.getCurrentTime() ) ) );
-		timeline.addAttribute( new Attribute( "type", audio.getType() ) );
-		timeline.addAttribute( new Attribute( "volume", "100" ) );
-
-		if ( logger.isLoggable( Level.FINER ) ) {
-			logger.finer( timeline.toXML() );
-		}
-
-		return timeline;
+		return TimelineWriter.generateTimeline( audio, state, clientId, server.getAddress(), Integer.toString( server.getPort() ) );
 	}
 
 	public Element generateEmptyTimeline( String type ) {
-		Element timeline = new Element( "Timeline" );
-		timeline.addAttribute( new Attribute( "location", "navigation" ) );
-		// timeline.addAttribute( new Attribute( "seekRange", "0-0" ) );
-		timeline.addAttribute( new Attribute( "state", "stopped" ) );
-		timeline.addAttribute( new Attribute( "time", "0" ) );
-		timeline.addAttribute( new Attribute( "type", type ) );
-
-		return timeline;
+		return TimelineWriter.generateEmptyTimeline( type );
 	}
 
 	public Document generateTimelineContainer( Element musicTimeline, Element photoTimeline, Element videoTimeline ) {
-		Element container = new Element( "MediaContainer" );
-
-		container.addAttribute( new Attribute( "commandID", commandId ) );
-		String location = "fullScreenVideo";
-		if ( musicTimeline.getAttributeValue( "location" ).equals( "navigation" )
-				&& videoTimeline.getAttributeValue( "location" ).equals( "navigation" ) ) {
-			location = "navigation";
-		}
-		container.addAttribute( new Attribute( "location", location ) );
-
-		container.appendChild( musicTimeline );
-		container.appendChild( photoTimeline );
-		container.appendChild( videoTimeline );
-
-		return new Document( container );
+		return TimelineWriter.generateTimelineContainer( commandId, musicTimeline, photoTimeline, videoTimeline );
 	}
 
 }
@@ -0,0 +1,342 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import nu.xom.Attribute;
+import nu.xom.Document;
+import nu.xom.Element;
+
+/**
+ * Renders timelines. The elements are built here for both {@link TimelineSubscriber} and the templates, so both produce the same XML.
+ * A {@link Template} is the serialized timeline for one state, rendered once with placeholders where the per-subscriber command id,
+ * address and port go; each subscriber then only gets those values spliced in. The last push and poll templates are cached, so a
+ * state is rendered once no matter how many controllers receive it.
+ */
+public class TimelineWriter {
+	private static final Charset utf8 = Charset.forName( "UTF-8" );
+
+	// Private use characters, which XOM writes as they are and can never come from Plex or a controller
+	private static final char commandIdSlot = '\uE000';
+	private static final char addressSlot = '\uE001';
+	private static final char portSlot = '\uE002';
+
+	private String clientId;
+	private PlexServer server;
+
+	private volatile Template lastPush = null;
+	private volatile Template lastPoll = null;
+
+	public TimelineWriter( String clientId, PlexServer server ) {
+		this.clientId = clientId;
+		this.server = server;
+	}
+
+	/**
+	 * @return the template for a timeline update about the given item in the given state
+	 */
+	public Template getTemplate( Playable playable, String state ) {
+		// The progress is taken once, so the template and the check against it agree even while the monitor updates the item
+		return getTemplate( playable, playable.getProgress(), state );
+	}
+
+	/**
+	 * @param progress where the item stands, as already taken by the caller
+	 */
+	public Template getTemplate( Playable playable, Playable.Progress progress, String state ) {
+		Template template = lastPush;
+		if ( template != null && template.generation == server.getGeneration() && template.matches( playable, progress, state, null, null, null ) ) {
+			return template;
+		}
+
+		Element musicTimeline;
+		Element videoTimeline;
+		if ( playable.getType() == Video.type ) {
+			musicTimeline = generateEmptyTimeline( "music" );
+			videoTimeline = state.equals( "stopped" ) ? generateEmptyTimeline( "video" ) : generateTimeline( (Video) playable, progress, state,
+					clientId, String.valueOf( addressSlot ), String.valueOf( portSlot ) );
+		} else {
+			musicTimeline = generateTimeline( (Track) playable, progress, state, clientId, server.getAddress(), Integer.toString( server.getPort() ) );
+			videoTimeline = generateEmptyTimeline( "video" );
+		}
+
+		Document document = generateTimelineContainer( String.valueOf( commandIdSlot ), musicTimeline, generateEmptyTimeline( "photo" ),
+				videoTimeline );
+		template = new Template( server.getGeneration(), playable, progress, state, null, null, null, document );
+		lastPush = template;
+		return template;
+	}
+
+	/**
+	 * @return the template answering a timeline poll, showing whatever track and video were seen last (either may be null)
+	 */
+	public Template getPollTemplate( Track track, Video video ) {
+		Playable.Progress trackProgress = track == null ? null : track.getProgress();
+		Playable.Progress videoProgress = video == null ? null : video.getProgress();
+		String trackState = trackProgress == null ? null : trackProgress.getState();
+		String videoState = videoProgress == null ? null : videoProgress.getState();
+		Template template = lastPoll;
+		if ( template != null && template.generation == server.getGeneration()
+				&& template.matches( track, trackProgress, trackState, video, videoProgress, videoState ) ) {
+			return template;
+		}
+
+		Element videoTimeline = video == null ? generateEmptyTimeline( "video" ) : generateTimeline( video, videoProgress, videoState, clientId,
+				String.valueOf( addressSlot ), String.valueOf( portSlot ) );
+		Element audioTimeline = track == null ? generateEmptyTimeline( "music" ) : generateTimeline( track, trackProgress, trackState, clientId,
+				server.getAddress(), Integer.toString( server.getPort() ) );
+
+		Document document = generateTimelineContainer( String.valueOf( commandIdSlot ), audioTimeline, generateEmptyTimeline( "photo" ),
+				videoTimeline );
+		template = new Template( server.getGeneration(), track, trackProgress, trackState, video, videoProgress, videoState, document );
+		lastPoll = template;
+		return template;
+	}
+
+	public static Element generateTimeline( Video video, String state, String machineIdentifier, String address, String port ) {
+		return generateTimeline( video, video.getProgress(), state, machineIdentifier, address, port );
+	}
+
+	static Element generateTimeline( Video video, Playable.Progress progress, String state, String machineIdentifier, String address,
+			String port ) {
+		Element timeline = new Element( "Timeline" );
+		// timeline.addAttribute( new Attribute( "address", server.getAddress()
+		// ) );
+		timeline.addAttribute( new Attribute( "address", address ) );
+		// timeline.addAttribute( new Attribute( "audioStreamID",
+		// Integer.toString( video.getStream( audioStreamIndex ) ) ) );
+		timeline.addAttribute( new Attribute( "containerKey", video.getContainerKey() ) );
+		timeline.addAttribute( new Attribute( "controllable", "playPause,stop,seekTo,stepBack,stepForward" ) );
+		timeline.addAttribute( new Attribute( "duration", Integer.toString( progress.getDuration() ) ) );
+		timeline.addAttribute( new Attribute( "guid", video.getGuid() ) );
+		timeline.addAttribute( new Attribute( "key", video.getKey() ) );
+		timeline.addAttribute( new Attribute( "location", video.getLocation() ) );
+		timeline.addAttribute( new Attribute( "machineIdentifier", machineIdentifier ) );
+		timeline.addAttribute( new Attribute( "mute", "0" ) );
+		// timeline.addAttribute( new Attribute( "port", Integer.toString(
+		// server.getPort() ) ) );
+		timeline.addAttribute( new Attribute( "port", port ) );
+		timeline.addAttribute( new Attribute( "protocol", "http" ) );
+		timeline.addAttribute( new Attribute( "ratingKey", video.getRatingKey() ) );
+		timeline.addAttribute( new Attribute( "repeat", "0" ) );
+		timeline.addAttribute( new Attribute( "seekRange", "0-" + Integer.toString( progress.getDuration() ) ) );
+		timeline.addAttribute( new Attribute( "shuffle", "0" ) );
+		timeline.addAttribute( new Attribute( "state", state ) );
+		timeline.addAttribute( new Attribute( "subtitleStreamID", "-1" ) );
+		timeline.addAttribute( new Attribute( "time", Integer.toString( progress.getCurrentTime() ) ) );
+		timeline.addAttribute( new Attribute( "type", video.getType() ) );
+		timeline.addAttribute( new Attribute( "volume", "100" ) );
+
+		return timeline;
+	}
+
+	public static Element generateTimeline( Track audio, String state, String machineIdentifier, String address, String port ) {
+		return generateTimeline( audio, audio.getProgress(), state, machineIdentifier, address, port );
+	}
+
+	static Element generateTimeline( Track audio, Playable.Progress progress, String state, String machineIdentifier, String address,
+			String port ) {
+		Element timeline = new Element( "Timeline" );
+		timeline.addAttribute( new Attribute( "address", address ) );
+		timeline.addAttribute( new Attribute( "containerKey", audio.getContainerKey() ) );
+		timeline.addAttribute( new Attribute( "controllable", "playPause,stop,skipPrevious,skipNext,seekTo,repeat" ) );
+		timeline.addAttribute( new Attribute( "duration", Integer.toString( progress.getDuration() ) ) );
+		timeline.addAttribute( new Attribute( "key", audio.getKey() ) );
+		timeline.addAttribute( new Attribute( "location", audio.getLocation() ) );
+		timeline.addAttribute( new Attribute( "machineIdentifier", machineIdentifier ) );
+		timeline.addAttribute( new Attribute( "mute", "0" ) );
+		timeline.addAttribute( new Attribute( "port", port ) );
+		timeline.addAttribute( new Attribute( "protocol", "http" ) );
+		timeline.addAttribute( new Attribute( "ratingKey", audio.getRatingKey() ) );
+		timeline.addAttribute( new Attribute( "repeat", "0" ) );
+		timeline.addAttribute( new Attribute( "seekRange", "0-" + Integer.toString( progress.getDuration() ) ) );
+		timeline.addAttribute( new Attribute( "shuffle", "0" ) );
+		timeline.addAttribute( new Attribute( "state", state ) );
+		timeline.addAttribute( new Attribute( "time", Integer.toString( progress.getCurrentTime() ) ) );
+		timeline.addAttribute( new Attribute( "type", audio.getType() ) );
+		timeline.addAttribute( new Attribute( "volume", "100" ) );
+
+		return timeline;
+	}
+
+	public static Element generateEmptyTimeline( String type ) {
+		Element timeline = new Element( "Timeline" );
+		timeline.addAttribute( new Attribute( "location", "navigation" ) );
+		// timeline.addAttribute( new Attribute( "seekRange", "0-0" ) );
+		timeline.addAttribute( new Attribute( "state", "stopped" ) );
+		timeline.addAttribute( new Attribute( "time", "0" ) );
+		timeline.addAttribute( new Attribute( "type", type ) );
+
+		return timeline;
+	}
+
+	public static Document generateTimelineContainer( String commandId, Element musicTimeline, Element photoTimeline, Element videoTimeline ) {
+		Element container = new Element( "MediaContainer" );
+
+		container.addAttribute( new Attribute( "commandID", commandId ) );
+		String location = "fullScreenVideo";
+		if ( musicTimeline.getAttributeValue( "location" ).equals( "navigation" )
+				&& videoTimeline.getAttributeValue( "location" ).equals( "navigation" ) ) {
+			location = "navigation";
+		}
+		container.addAttribute( new Attribute( "location", location ) );
+
+		container.appendChild( musicTimeline );
+		container.appendChild( photoTimeline );
+		container.appendChild( videoTimeline );
+
+		return new Document( container );
+	}
+
+	// Escapes an attribute value the way XOM does
+	private static String escape( String value ) {
+		StringBuilder sb = null;
+		for ( int i = 0; i < value.length(); ++i ) {
+			char c = value.charAt( i );
+			String replacement = null;
+			switch ( c ) {
+			case '&':
+				replacement = "&amp;";
+				break;
+			case '<':
+				replacement = "&lt;";
+				break;
+			case '>':
+				replacement = "&gt;";
+				break;
+			case '"':
+				replacement = "&quot;";
+				break;
+			case '\t':
+				replacement = "&#x09;";
+				break;
+			case '\n':
+				replacement = "&#x0A;";
+				break;
+			case '\r':
+				replacement = "&#x0D;";
+				break;
+			}
+			if ( replacement != null && sb == null ) {
+				sb = new StringBuilder( value.length() + 16 );
+				sb.append( value, 0, i );
+			}
+			if ( sb != null ) {
+				if ( replacement != null ) {
+					sb.append( replacement );
+				} else {
+					sb.append( c );
+				}
+			}
+		}
+		return sb == null ? value : sb.toString();
+	}
+
+	/**
+	 * A serialized timeline container, split at the command id, address and port placeholders.
+	 */
+	public static class Template {
+		// The server's generation, music timelines carry its address
+		private int generation;
+		private Playable first;
+		private Playable.Progress firstProgress;
+		private String firstState;
+		private Playable second;
+		private Playable.Progress secondProgress;
+		private String secondState;
+
+		private String[] segments;
+		private byte[][] encodedSegments;
+		private char[] slots;
+		private int size = 0;
+
+		private Template( int generation, Playable first, Playable.Progress firstProgress, String firstState, Playable second,
+				Playable.Progress secondProgress, String secondState, Document document ) {
+			this.generation = generation;
+			this.first = first;
+			this.firstProgress = firstProgress;
+			this.firstState = firstState;
+			this.second = second;
+			this.secondProgress = secondProgress;
+			this.secondState = secondState;
+
+			String xml = document.toXML();
+			List< String > segmentList = new ArrayList< String >();
+			StringBuilder slotList = new StringBuilder();
+			int start = 0;
+			for ( int i = 0; i < xml.length(); ++i ) {
+				char c = xml.charAt( i );
+				if ( c == commandIdSlot || c == addressSlot || c == portSlot ) {
+					segmentList.add( xml.substring( start, i ) );
+					slotList.append( c );
+					start = i + 1;
+				}
+			}
+			segmentList.add( xml.substring( start ) );
+
+			segments = segmentList.toArray( new String[segmentList.size()] );
+			slots = slotList.toString().toCharArray();
+			encodedSegments = new byte[segments.length][];
+			for ( int i = 0; i < segments.length; ++i ) {
+				encodedSegments[i] = segments[i].getBytes( utf8 );
+				size += encodedSegments[i].length;
+			}
+		}
+
+		private boolean matches( Playable first, Playable.Progress firstProgress, String firstState, Playable second,
+				Playable.Progress secondProgress, String secondState ) {
+			return same( this.first, this.firstProgress, this.firstState, first, firstProgress, firstState )
+					&& same( this.second, this.secondProgress, this.secondState, second, secondProgress, secondState );
+		}
+
+		private static boolean same( Playable playable, Playable.Progress progress, String state, Playable other,
+				Playable.Progress otherProgress, String otherState ) {
+			if ( playable != other ) {
+				return false;
+			}
+			if ( playable == null ) {
+				return true;
+			}
+			return state.equals( otherState ) && progress.getCurrentTime() == otherProgress.getCurrentTime()
+					&& progress.getDuration() == otherProgress.getDuration();
+		}
+
+		private String getValue( char slot, String commandId, String address, int port ) {
+			if ( slot == commandIdSlot ) {
+				return escape( commandId == null ? "" : commandId );
+			} else if ( slot == addressSlot ) {
+				return escape( address );
+			}
+			return Integer.toString( port );
+		}
+
+		public byte[] toByteArray( String commandId, String address, int port ) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream( size + 64 );
+			for ( int i = 0; i < slots.length; ++i ) {
+				out.write( encodedSegments[i], 0, encodedSegments[i].length );
+				byte[] value = getValue( slots[i], commandId, address, port ).getBytes( utf8 );
+				out.write( value, 0, value.length );
+			}
+			byte[] last = encodedSegments[slots.length];
+			out.write( last, 0, last.length );
+			return out.toByteArray();
+		}
+
+		@Override
+		public String toString() {
+			return toString( null, "", 0 );
+		}
+
+		public String toString( String commandId, String address, int port ) {
+			StringBuilder sb = new StringBuilder( size + 64 );
+			for ( int i = 0; i < slots.length; ++i ) {
+				sb.append( segments[i] );
+				sb.append( getValue( slots[i], commandId, address, port ) );
+			}
+			sb.append( segments[slots.length] );
+			return sb.toString();
+		}
+	}
+}
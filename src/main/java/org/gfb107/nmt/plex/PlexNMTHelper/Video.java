@@ -5,12 +5,13 @@ public class Video extends Playable {
 	public final static String location = "fullScreenVideo";
 
 	private String guid;
-	private String httpFile;
+	// Only the server's path to the part, the server may have moved by the time it's played
+	private String partKey;
 
-	public Video( String containerKey, String key, String ratingKey, String title, String guid, int duration, String file, String httpFile ) {
+	public Video( String containerKey, String key, String ratingKey, String title, String guid, int duration, String file, String partKey ) {
 		super( type, location, containerKey, key, ratingKey, title, file, duration );
 		this.guid = guid;
-		this.httpFile = httpFile;
+		this.partKey = partKey;
 	}
 
 	public String getGuid() {
@@ -21,11 +22,11 @@ public class Video extends Playable {
 		this.guid = guid;
 	}
 
-	public String getHttpFile() {
-		return httpFile;
+	public String getPartKey() {
+		return partKey;
 	}
 
-	public void setHttpFile( String httpFile ) {
-		this.httpFile = httpFile;
+	public void setPartKey( String partKey ) {
+		this.partKey = partKey;
 	}
 }
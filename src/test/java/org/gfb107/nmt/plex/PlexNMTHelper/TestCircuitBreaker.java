@@ -0,0 +1,65 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestCircuitBreaker {
+	@Test
+	public void testOpensAfterThreshold() {
+		CircuitBreaker breaker = new CircuitBreaker( 3, 1000, 8000 );
+		assertTrue( breaker.allowRequest( 0 ) );
+		assertFalse( breaker.onFailure( 0 ) );
+		assertFalse( breaker.onFailure( 0 ) );
+		assertTrue( breaker.onFailure( 0 ) );
+		assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+		assertFalse( breaker.allowRequest( 999 ) );
+
+		// A success before the threshold starts the count again
+		breaker = new CircuitBreaker( 3, 1000, 8000 );
+		breaker.onFailure( 0 );
+		breaker.onFailure( 0 );
+		breaker.onSuccess();
+		assertFalse( breaker.onFailure( 0 ) );
+		assertEquals( CircuitBreaker.State.CLOSED, breaker.getState() );
+	}
+
+	@Test
+	public void testProbeBackoff() {
+		CircuitBreaker breaker = new CircuitBreaker( 1, 1000, 3000 );
+		breaker.onFailure( 0 );
+
+		// One probe once the backoff has passed, the rest wait for its result
+		assertTrue( breaker.allowRequest( 1000 ) );
+		assertEquals( CircuitBreaker.State.HALF_OPEN, breaker.getState() );
+		assertFalse( breaker.allowRequest( 1001 ) );
+
+		// A failed probe doubles the backoff, up to the maximum
+		assertTrue( breaker.onFailure( 1100 ) );
+		assertEquals( 2000, breaker.getBackoff() );
+		assertFalse( breaker.allowRequest( 3099 ) );
+		assertTrue( breaker.allowRequest( 3100 ) );
+		breaker.onFailure( 3200 );
+		assertEquals( 3000, breaker.getBackoff() );
+		assertTrue( breaker.allowRequest( 6200 ) );
+
+		// A successful probe closes it and resets the backoff
+		breaker.onSuccess();
+		assertEquals( CircuitBreaker.State.CLOSED, breaker.getState() );
+		assertEquals( 1000, breaker.getBackoff() );
+		assertTrue( breaker.allowRequest( 6201 ) );
+	}
+
+	@Test
+	public void testLostProbe() {
+		CircuitBreaker breaker = new CircuitBreaker( 1, 1000, 8000 );
+		breaker.onFailure( 0 );
+		assertTrue( breaker.allowRequest( 1000 ) );
+
+		// The probe's result never came, another is let through after the backoff
+		assertFalse( breaker.allowRequest( 1999 ) );
+		assertTrue( breaker.allowRequest( 2000 ) );
+	}
+}
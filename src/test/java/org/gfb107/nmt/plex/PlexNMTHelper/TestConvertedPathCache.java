@@ -0,0 +1,56 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class TestConvertedPathCache {
+
+	@Test
+	public void testShare() {
+		ConvertedPathCache cache = new ConvertedPathCache( 10, 60000, 60000 );
+		cache.put( "smb://Mini/Mounts/Movies/17 Again.mkv", "/opt/sybhttpd/localhost.drives/NETWORK_SHARE/Mounts/Movies/17 Again.mkv" );
+
+		assertEquals( "/opt/sybhttpd/localhost.drives/NETWORK_SHARE/Mounts/TV/Episode.mkv", cache.get( "smb://Mini/Mounts/TV/Episode.mkv" )
+				.convert( "smb://Mini/Mounts/TV/Episode.mkv" ) );
+		assertNull( cache.get( "smb://Mini/Other/Movie.mkv" ) );
+
+		cache.invalidate( "smb://Mini/Mounts/Movies/Another.mkv" );
+		assertNull( cache.get( "smb://Mini/Mounts/TV/Episode.mkv" ) );
+	}
+
+	@Test
+	public void testNegative() throws Exception {
+		ConvertedPathCache cache = new ConvertedPathCache( 10, 60000, 50 );
+		cache.put( "nfs://nas/video/Movie.mkv", null );
+		assertFalse( cache.get( "nfs://nas/video/Movie.mkv" ).isConverted() );
+		// Another file on the share may well convert
+		assertNull( cache.get( "nfs://nas/video/Other.mkv" ) );
+
+		Thread.sleep( 100 );
+		assertNull( cache.get( "nfs://nas/video/Movie.mkv" ) );
+
+		cache.put( "nfs://nas/video/Movie.mkv", null );
+		cache.invalidate( "nfs://nas/video/Movie.mkv" );
+		assertNull( cache.get( "nfs://nas/video/Movie.mkv" ) );
+	}
+
+	@Test
+	public void testLimits() {
+		ConvertedPathCache cache = new ConvertedPathCache( 2, 60000, 60000 );
+		// A conversion that changed the rest of the path can't be reused
+		cache.put( "smb://a/share/File.mkv", "/mnt/file.mkv" );
+		assertEquals( 0, cache.size() );
+		// Nor can one that isn't on a share
+		cache.put( "/share/File.mkv", "/share/File.mkv" );
+		assertEquals( 0, cache.size() );
+
+		cache.put( "smb://a/share/File.mkv", "/mnt/a/File.mkv" );
+		cache.put( "smb://b/share/File.mkv", "/mnt/b/File.mkv" );
+		cache.put( "smb://c/share/File.mkv", "/mnt/c/File.mkv" );
+		assertEquals( 2, cache.size() );
+		assertNull( cache.get( "smb://a/share/File.mkv" ) );
+	}
+}
@@ -0,0 +1,80 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TestHistogram {
+
+	@Test
+	public void testBuckets() {
+		for ( long value = 0; value < 100000; value += 7 ) {
+			int index = Histogram.getIndex( value );
+			assertTrue( Histogram.getLowerBound( index ) <= value );
+			assertTrue( Histogram.getUpperBound( index ) >= value );
+			// Within an eighth of the value
+			assertTrue( Histogram.getUpperBound( index ) - Histogram.getLowerBound( index ) <= Math.max( 0, value / 8 ) );
+		}
+		assertEquals( Histogram.getIndex( Long.MAX_VALUE ), Histogram.getIndex( Long.MAX_VALUE / 2 ) );
+	}
+
+	@Test
+	public void testPercentiles() {
+		Histogram histogram = new Histogram();
+		for ( int i = 1; i <= 1000; ++i ) {
+			histogram.record( i );
+		}
+		assertEquals( 1000, histogram.getCount() );
+		assertEquals( 500500, histogram.getSum() );
+		assertEquals( 1000, histogram.getMax() );
+
+		long median = histogram.getPercentile( 0.5 );
+		assertTrue( median >= 500 && median <= 500 * 9 / 8 );
+		long p99 = histogram.getPercentile( 0.99 );
+		assertTrue( p99 >= 990 && p99 <= 1000 );
+		assertEquals( 1000, histogram.getPercentile( 1.0 ) );
+	}
+
+	@Test
+	public void testMetrics() {
+		Metrics.Family< Histogram > family = Metrics.histograms( "test_seconds", "route", "Test" );
+		assertTrue( family.get( "/a" ) == family.get( "/a" ) );
+		family.get( "/a" ).recordNanos( 2000000 );
+
+		StringBuilder sb = new StringBuilder();
+		Metrics.write( sb );
+		String text = sb.toString();
+		assertTrue( text.contains( "# TYPE test_seconds summary" ) );
+		assertTrue( text.contains( "test_seconds_count{route=\"/a\"} 1" ) );
+		assertTrue( text.contains( "test_seconds{route=\"/a\",quantile=\"0.5\"} 0.002" ) );
+	}
+
+	@Test
+	public void testTwoLabels() {
+		Metrics.Family< AtomicLong > family = Metrics.counters( "test_labels_total", "device", "route", "Test" );
+		family.get( "Living Room", "/a" ).incrementAndGet();
+		family.get( "Bedroom", "/a" ).addAndGet( 2 );
+		assertTrue( family.get( "Living Room", "/a" ) != family.get( "Bedroom", "/a" ) );
+
+		StringBuilder sb = new StringBuilder();
+		Metrics.write( sb );
+		String text = sb.toString();
+		assertTrue( text.contains( "test_labels_total{device=\"Living Room\",route=\"/a\"} 1" ) );
+		assertTrue( text.contains( "test_labels_total{device=\"Bedroom\",route=\"/a\"} 2" ) );
+	}
+
+	@Test
+	public void testOverflow() {
+		Metrics.Family< AtomicLong > family = Metrics.counters( "test_total", "route", "Test" );
+		for ( int i = 0; i < Metrics.maximumLabels; ++i ) {
+			family.get( "/" + i ).incrementAndGet();
+		}
+		// Label values past the limit share one metric
+		assertTrue( family.get( "/overflow" ) == family.get( "/another" ) );
+		assertTrue( family.get( "/overflow" ) == family.get( "other" ) );
+		assertTrue( family.get( "/0" ) != family.get( "other" ) );
+	}
+}
@@ -0,0 +1,76 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestKeyPipeline {
+	// Stands in for the NMT, which is held up until released and turns down the "bad" key
+	private static class Keys extends KeyPipeline {
+		private ExecutorService device = Executors.newSingleThreadExecutor();
+		private List< String > sent = new ArrayList< String >();
+		private CountDownLatch release = new CountDownLatch( 1 );
+
+		private Keys( int limit ) {
+			super( null, "test", limit );
+		}
+
+		@Override
+		protected void submit( Callable< Void > delivery ) {
+			device.submit( delivery );
+		}
+
+		@Override
+		protected boolean sendKey( String key, String module ) throws Exception {
+			release.await();
+			synchronized ( sent ) {
+				sent.add( key );
+			}
+			return !key.equals( "bad" );
+		}
+
+		private List< String > finish() throws InterruptedException {
+			release.countDown();
+			device.shutdown();
+			assertTrue( device.awaitTermination( 5, TimeUnit.SECONDS ) );
+			return sent;
+		}
+	}
+
+	@Test
+	public void testOrder() throws Exception {
+		Keys keys = new Keys( 10 );
+		for ( String key : new String[] { "down", "down", "right", "enter" } ) {
+			assertTrue( keys.send( key, "flashlite" ) );
+		}
+		assertEquals( Arrays.asList( "down", "down", "right", "enter" ), keys.finish() );
+		assertEquals( 0, keys.getWaiting() );
+	}
+
+	@Test
+	public void testDropped() throws Exception {
+		Keys keys = new Keys( 3 );
+		assertTrue( keys.send( "up", "flashlite" ) );
+		Thread.sleep( 100 );
+
+		// The first is with the NMT, three more may wait, the rest are dropped
+		assertTrue( keys.send( "down", "flashlite" ) );
+		assertTrue( keys.send( "bad", "flashlite" ) );
+		assertTrue( keys.send( "left", "flashlite" ) );
+		assertFalse( keys.send( "right", "flashlite" ) );
+		assertEquals( 3, keys.getWaiting() );
+
+		assertEquals( Arrays.asList( "up", "down", "bad", "left" ), keys.finish() );
+	}
+}
@@ -0,0 +1,62 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+
+import nu.xom.Builder;
+import nu.xom.Element;
+
+import org.junit.Test;
+
+public class TestNmtStatus {
+
+	@Test
+	public void testVideoPlaying() throws Exception {
+		NmtStatus status = new NmtStatus();
+		InputStream in = getClass().getResourceAsStream( "/get_current_vod_info.xml" );
+		status.decode( in );
+		in.close();
+		String fullPath = status.getFullPath();
+
+		// A second decode of the same response reuses the path
+		status.decode( getClass().getResourceAsStream( "/get_current_vod_info.xml" ) );
+		assertTrue( fullPath == status.getFullPath() );
+
+		Element response = new Builder().build( getClass().getResourceAsStream( "/get_current_vod_info.xml" ) ).getRootElement();
+		Element details = response.getFirstChildElement( "response" );
+
+		assertTrue( status.isPlaying() );
+		assertEquals( response.getFirstChildElement( "returnValue" ).getValue(), Integer.toString( status.getReturnValue() ) );
+		assertEquals( details.getFirstChildElement( "fullPath" ).getValue(), status.getFullPath() );
+		assertEquals( "playing", status.getState() );
+		assertEquals( 1325000, status.getCurrentTime() );
+		assertEquals( 6124000, status.getTotalTime() );
+	}
+
+	@Test
+	public void testReuse() throws Exception {
+		NmtStatus status = new NmtStatus();
+		status.decode( getClass().getResourceAsStream( "/get_current_vod_info.xml" ) );
+		status.decode( getClass().getResourceAsStream( "/get_current_aod_info_idle.xml" ) );
+
+		assertFalse( status.isPlaying() );
+		assertNull( status.getFullPath() );
+		assertEquals( 0, status.getCurrentTime() );
+	}
+
+	@Test
+	public void testEntities() throws Exception {
+		NmtStatus status = new NmtStatus();
+		byte[] data = "<theDavidBox><response><fullPath>/share/Tom &amp; Jerry/&#233;t&#xE9;.avi</fullPath><currentStatus>pause</currentStatus></response><returnValue>0</returnValue></theDavidBox>"
+				.getBytes( "UTF-8" );
+		status.decode( data, data.length );
+
+		assertTrue( status.isPlaying() );
+		assertEquals( "/share/Tom & Jerry/\u00e9t\u00e9.avi", status.getFullPath() );
+		assertEquals( "paused", status.getState() );
+	}
+}
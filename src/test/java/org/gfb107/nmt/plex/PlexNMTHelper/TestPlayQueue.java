@@ -0,0 +1,55 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestPlayQueue {
+	private Track track( String itemId ) {
+		Track track = new Track( "/playQueues/1", "/library/metadata/" + itemId, itemId, "Track " + itemId, "/file" + itemId, 1000 );
+		track.setPlayQueueItemId( itemId );
+		return track;
+	}
+
+	@Test
+	public void testMerge() {
+		PlayQueue queue = new PlayQueue( "/playQueues/1", 0 );
+		queue.add( track( "1" ) );
+		queue.add( track( "2" ) );
+		Playable current = queue.next();
+		current.setCurrentTime( 500 );
+		current.setState( "playing" );
+
+		// Another track is put ahead of the one playing and two more are added at the end
+		List< Playable > items = new ArrayList< Playable >();
+		items.add( track( "1" ) );
+		items.add( track( "5" ) );
+		items.add( track( "2" ) );
+		items.add( track( "3" ) );
+		items.add( track( "4" ) );
+		assertEquals( 3, queue.merge( 2, items, 1 ) );
+
+		assertEquals( 5, queue.size() );
+		assertEquals( 2, queue.getVersion() );
+		assertTrue( current == queue.getCurrent() );
+		assertEquals( 500, queue.getCurrent().getCurrentTime() );
+		assertEquals( "3", queue.next().getPlayQueueItemId() );
+	}
+
+	@Test
+	public void testCurrentRemoved() {
+		PlayQueue queue = new PlayQueue( "/playQueues/1", 0 );
+		queue.add( track( "1" ) );
+		queue.add( track( "2" ) );
+
+		List< Playable > items = new ArrayList< Playable >();
+		items.add( track( "2" ) );
+		items.add( track( "3" ) );
+		queue.merge( 3, items, 1 );
+		assertEquals( "3", queue.getCurrent().getPlayQueueItemId() );
+	}
+}
@@ -0,0 +1,53 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestReplacementIndex {
+
+	@Test
+	public void testLongestPrefix() {
+		ReplacementIndex index = new ReplacementIndex();
+		assertTrue( index.add( new Replacement( "//Mini/Mounts/", "smb://Mini/Mounts" ) ) );
+		assertTrue( index.add( new Replacement( "//Mini/Mounts/Movies/", "nfs://Mini/Movies" ) ) );
+
+		String path = "//Mini/Mounts/Movies/17 Again.mkv";
+		assertEquals( "nfs://Mini/Movies/17 Again.mkv", index.find( path ).convert( path ) );
+
+		path = "//Mini/Mounts/TV/Show/Episode.mkv";
+		assertEquals( "smb://Mini/Mounts/TV/Show/Episode.mkv", index.find( path ).convert( path ) );
+
+		// Matching is by whole directories, as with startsWith on the prefix
+		assertNull( index.find( "//Mini/MountsOld/Movie.mkv" ) );
+		assertNull( index.find( "//Mini/Mounts" ) );
+		assertNull( index.find( "/share/Movie.mkv" ) );
+	}
+
+	@Test
+	public void testFirstWins() {
+		ReplacementIndex index = new ReplacementIndex();
+		assertTrue( index.add( new Replacement( "/volume1/video", "smb://nas/video" ) ) );
+		assertFalse( index.add( new Replacement( "/volume1/video/", "nfs://nas/video" ) ) );
+		assertEquals( 1, index.size() );
+		assertEquals( "smb://nas/video/", index.find( "/volume1/video/a.mkv" ).getTo() );
+	}
+
+	@Test
+	public void testManyReplacements() {
+		ReplacementIndex index = new ReplacementIndex();
+		for ( int i = 0; i < 500; ++i ) {
+			index.add( new Replacement( "//Server" + i + "/Share/", "smb://Server" + i + "/Share/" ) );
+		}
+		assertEquals( 500, index.size() );
+		for ( int i = 0; i < 500; ++i ) {
+			String path = "//Server" + i + "/Share/Movie.mkv";
+			Replacement replacement = index.find( path );
+			assertTrue( replacement.matches( path ) );
+			assertEquals( "smb:" + path, replacement.convert( path ) );
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestSeekCoalescer {
+	// Stands in for the NMT, which takes a while over every seek and can be held up to see what happens meanwhile
+	private static class Seeker extends SeekCoalescer {
+		private ExecutorService device = Executors.newSingleThreadExecutor();
+		private List< String > sent = new ArrayList< String >();
+		private CountDownLatch release = new CountDownLatch( 0 );
+
+		private Seeker( ScheduledExecutorService scheduler ) {
+			super( null, "test", scheduler, 50, null );
+		}
+
+		@Override
+		protected void submit( Callable< Void > send ) {
+			device.submit( send );
+		}
+
+		@Override
+		protected boolean send( String timestamp ) throws Exception {
+			synchronized ( sent ) {
+				sent.add( timestamp );
+			}
+			release.await();
+			return true;
+		}
+
+		private List< String > awaitIdle() throws InterruptedException {
+			long end = System.currentTimeMillis() + 5000;
+			while ( !isIdle() && System.currentTimeMillis() < end ) {
+				Thread.sleep( 10 );
+			}
+			assertTrue( isIdle() );
+			synchronized ( sent ) {
+				return new ArrayList< String >( sent );
+			}
+		}
+	}
+
+	@Test
+	public void testBurst() throws Exception {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			Seeker seeker = new Seeker( scheduler );
+			seeker.seekTo( 60 );
+			seeker.seekTo( 90 );
+			seeker.seekTo( 3725 );
+
+			List< String > sent = seeker.awaitIdle();
+			assertEquals( 1, sent.size() );
+			assertEquals( "01:02:05", sent.get( 0 ) );
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testWhileBusy() throws Exception {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			Seeker seeker = new Seeker( scheduler );
+			seeker.release = new CountDownLatch( 1 );
+			seeker.seekTo( 10 );
+			Thread.sleep( 200 );
+
+			// Everything sent while the NMT is busy comes down to the last one
+			seeker.seekTo( 20 );
+			seeker.seekTo( 30 );
+			seeker.seekTo( 40 );
+			seeker.release.countDown();
+
+			List< String > sent = seeker.awaitIdle();
+			assertEquals( 2, sent.size() );
+			assertEquals( "00:00:10", sent.get( 0 ) );
+			assertEquals( "00:00:40", sent.get( 1 ) );
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testSteps() throws Exception {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			Seeker seeker = new Seeker( scheduler );
+			// The position is still the old one, the steps add up from the latest target
+			seeker.step( 30, 100, 5400 );
+			seeker.step( 30, 100, 5400 );
+			seeker.step( -15, 100, 5400 );
+
+			List< String > sent = seeker.awaitIdle();
+			assertEquals( 1, sent.size() );
+			assertEquals( "00:02:25", sent.get( 0 ) );
+
+			// Once it's done, a step starts from the position again, and stops at the end
+			seeker.step( 30, 5390, 5400 );
+			sent = seeker.awaitIdle();
+			assertEquals( "01:30:00", sent.get( 1 ) );
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+}
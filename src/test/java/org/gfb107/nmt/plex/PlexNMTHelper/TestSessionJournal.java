@@ -0,0 +1,126 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+public class TestSessionJournal {
+	@Test
+	public void testReplay() throws Exception {
+		File file = File.createTempFile( "session", ".journal" );
+		try {
+			SessionJournal journal = new SessionJournal( file, 4096 );
+			journal.subscribe( "phone", "3", "192.168.1.20", 32500 );
+			journal.subscribe( "tablet", "7", "192.168.1.21", 32500 );
+			journal.queue( "/playQueues/12", 2, Video.type, "/library/metadata/5", "/opt/sybhttpd/localhost.drives/NETWORK_SHARE/movie.mkv" );
+			journal.position( "/library/metadata/5", "playing", 60000 );
+			journal.position( "/library/metadata/5", "paused", 61000 );
+			journal.unsubscribe( "tablet" );
+			journal.close();
+
+			SessionJournal.Session session = new SessionJournal( file, 4096 ).getSession();
+			assertEquals( "/playQueues/12", session.getContainerKey() );
+			assertEquals( 2, session.getOffset() );
+			assertEquals( Video.type, session.getType() );
+			assertEquals( "/library/metadata/5", session.getKey() );
+			assertEquals( "/opt/sybhttpd/localhost.drives/NETWORK_SHARE/movie.mkv", session.getPlayFile() );
+			assertEquals( "paused", session.getState() );
+			assertEquals( 61000, session.getTime() );
+			assertEquals( 1, session.getSubscriptions().size() );
+			SessionJournal.Subscription subscription = session.getSubscriptions().iterator().next();
+			assertEquals( "phone", subscription.getClientId() );
+			assertEquals( "3", subscription.getCommandId() );
+			assertEquals( 32500, subscription.getPort() );
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		File file = File.createTempFile( "session", ".journal" );
+		try {
+			// Enough positions to fill a half many times over
+			SessionJournal journal = new SessionJournal( file, 1024 );
+			journal.subscribe( "phone", null, "192.168.1.20", 32500 );
+			journal.queue( "/playQueues/12", 0, Track.type, "/library/metadata/9", "/share/track.mp3" );
+			for ( int i = 0; i < 1000; ++i ) {
+				journal.position( "/library/metadata/9", "playing", i * 1000 );
+			}
+			journal.close();
+
+			SessionJournal.Session session = new SessionJournal( file, 1024 ).getSession();
+			assertEquals( "/library/metadata/9", session.getKey() );
+			assertEquals( 999000, session.getTime() );
+			assertEquals( 1, session.getSubscriptions().size() );
+			assertNull( session.getSubscriptions().iterator().next().getCommandId() );
+
+			journal = new SessionJournal( file, 1024 );
+			journal.clear();
+			journal.close();
+			assertNull( new SessionJournal( file, 1024 ).getSession().getContainerKey() );
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testFull() throws Exception {
+		File file = File.createTempFile( "session", ".journal" );
+		try {
+			// Far more subscriptions than a half can hold
+			SessionJournal journal = new SessionJournal( file, 512 );
+			journal.queue( "/playQueues/12", 0, Video.type, "/library/metadata/5", "/movie.mkv" );
+			for ( int i = 0; i < 100; ++i ) {
+				journal.subscribe( "controller-" + i, null, "192.168.1." + i, 32500 );
+			}
+			journal.position( "/library/metadata/5", "playing", 60000 );
+			int recorded = journal.getSession().getSubscriptions().size();
+			assertTrue( recorded > 0 && recorded < 100 );
+			journal.close();
+
+			SessionJournal.Session session = new SessionJournal( file, 512 ).getSession();
+			assertEquals( "/playQueues/12", session.getContainerKey() );
+			assertEquals( recorded, session.getSubscriptions().size() );
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testDamaged() throws Exception {
+		File file = File.createTempFile( "session", ".journal" );
+		try {
+			SessionJournal journal = new SessionJournal( file, 4096 );
+			journal.queue( "/playQueues/12", 0, Video.type, "/library/metadata/5", "/movie.mkv" );
+			journal.position( "/library/metadata/5", "playing", 60000 );
+			journal.position( "/library/metadata/5", "playing", 70000 );
+			journal.close();
+
+			// Damage the last record, as a crash part way through writing it might
+			RandomAccessFile raw = new RandomAccessFile( file, "rw" );
+			byte[] bytes = new byte[4096];
+			raw.readFully( bytes );
+			int last = 0;
+			for ( int i = 0; i < bytes.length - 4; ++i ) {
+				if ( bytes[i] == '7' && bytes[i + 1] == '0' && bytes[i + 2] == '0' ) {
+					last = i;
+				}
+			}
+			raw.seek( last );
+			raw.write( '8' );
+			raw.close();
+
+			SessionJournal.Session session = new SessionJournal( file, 4096 ).getSession();
+			assertEquals( "/playQueues/12", session.getContainerKey() );
+			assertEquals( 60000, session.getTime() );
+		} finally {
+			file.delete();
+		}
+	}
+}
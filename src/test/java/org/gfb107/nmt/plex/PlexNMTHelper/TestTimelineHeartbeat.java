@@ -0,0 +1,56 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestTimelineHeartbeat {
+	private static boolean update( TimelineHeartbeat heartbeat, Playable playable, long now ) {
+		if ( !heartbeat.isDue( playable, playable.getState(), playable.getProgress(), now ) ) {
+			return false;
+		}
+		heartbeat.sent( playable, playable.getState(), playable.getProgress(), now );
+		return true;
+	}
+
+	@Test
+	public void testHeartbeat() {
+		TimelineHeartbeat heartbeat = new TimelineHeartbeat( "test", "server", 10000 );
+		Video video = new Video( "/playQueues/1", "/library/metadata/1", "1", "Title", null, 6000000, "/file", null );
+		video.setProgress( "playing", 0, 6000000 );
+		assertTrue( update( heartbeat, video, 0 ) );
+
+		// Steady playback waits for the heartbeat
+		video.setProgress( "playing", 1000, 6000000 );
+		assertFalse( update( heartbeat, video, 1000 ) );
+		video.setProgress( "playing", 9000, 6000000 );
+		assertFalse( update( heartbeat, video, 9000 ) );
+		video.setProgress( "playing", 10000, 6000000 );
+		assertTrue( update( heartbeat, video, 10000 ) );
+
+		// A seek, a pause and a stop go straight away
+		video.setProgress( "playing", 600000, 6000000 );
+		assertTrue( update( heartbeat, video, 11000 ) );
+		video.setProgress( "paused", 601000, 6000000 );
+		assertTrue( update( heartbeat, video, 12000 ) );
+		video.setProgress( "paused", 601000, 6000000 );
+		assertFalse( update( heartbeat, video, 13000 ) );
+		video.setProgress( "stopped", 601000, 6000000 );
+		assertTrue( update( heartbeat, video, 14000 ) );
+
+		// So does another item, and anything after a reset
+		Video next = new Video( "/playQueues/1", "/library/metadata/2", "2", "Next", null, 6000000, "/next", null );
+		next.setProgress( "playing", 0, 6000000 );
+		assertTrue( update( heartbeat, next, 15000 ) );
+		heartbeat.reset();
+		assertTrue( update( heartbeat, next, 15500 ) );
+
+		// A stop that couldn't be sent stays due until it is
+		next.setProgress( "stopped", 16000, 6000000 );
+		assertTrue( heartbeat.isDue( next, "stopped", next.getProgress(), 16000 ) );
+		assertTrue( heartbeat.isDue( next, "stopped", next.getProgress(), 17000 ) );
+		assertTrue( update( heartbeat, next, 18000 ) );
+		assertFalse( update( heartbeat, next, 19000 ) );
+	}
+}
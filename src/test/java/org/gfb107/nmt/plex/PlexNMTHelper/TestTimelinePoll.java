@@ -0,0 +1,82 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TestTimelinePoll {
+	private static class Answer extends TimelinePoll.Waiter {
+		private AtomicLong version = new AtomicLong( 0 );
+
+		@Override
+		protected void answer( long version ) {
+			synchronized ( this ) {
+				this.version.set( version );
+				notifyAll();
+			}
+		}
+
+		private synchronized long await( long timeout ) throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+			while ( version.get() == 0 && System.currentTimeMillis() < end ) {
+				wait( end - System.currentTimeMillis() );
+			}
+			return version.get();
+		}
+	}
+
+	@Test
+	public void testPoll() throws Exception {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			TimelinePoll poll = new TimelinePoll( scheduler, 10000 );
+
+			// A new controller is answered straight away
+			Answer first = new Answer();
+			poll.poll( "controller", first );
+			assertEquals( poll.getVersion(), first.await( 0 ) );
+
+			// Having seen this version, its next poll waits for a change
+			Answer second = new Answer();
+			poll.poll( "controller", second );
+			assertEquals( 1, poll.getWaiting() );
+
+			Track track = new Track( "/playQueues/1", "/library/metadata/3", "3", "Title", "/file", 300000 );
+			track.setState( "playing" );
+			poll.update( track, null );
+			assertEquals( poll.getVersion(), second.await( 1000 ) );
+			assertEquals( 0, poll.getWaiting() );
+
+			// Steady playback isn't a change, a seek is
+			long version = poll.getVersion();
+			track.setCurrentTime( 500 );
+			poll.update( track, null );
+			assertEquals( version, poll.getVersion() );
+			track.setCurrentTime( 60000 );
+			poll.update( track, null );
+			assertEquals( version + 1, poll.getVersion() );
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			TimelinePoll poll = new TimelinePoll( scheduler, 100 );
+			poll.poll( "controller", new Answer() );
+
+			Answer answer = new Answer();
+			poll.poll( "controller", answer );
+			assertEquals( poll.getVersion(), answer.await( 5000 ) );
+			assertEquals( 0, poll.getWaiting() );
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+}
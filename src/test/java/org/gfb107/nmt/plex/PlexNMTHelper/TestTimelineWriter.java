@@ -0,0 +1,59 @@
+package org.gfb107.nmt.plex.PlexNMTHelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import nu.xom.Element;
+
+import org.junit.Test;
+
+public class TestTimelineWriter {
+	private PlexServer server = new PlexServer( "10.0.0.1", 32400, "Server" );
+
+	private String expected( String commandId, Element musicTimeline, Element videoTimeline ) {
+		return TimelineWriter.generateTimelineContainer( commandId, musicTimeline, TimelineWriter.generateEmptyTimeline( "photo" ),
+				videoTimeline ).toXML();
+	}
+
+	@Test
+	public void testVideo() throws Exception {
+		TimelineWriter writer = new TimelineWriter( "pch-00", server );
+		Video video = new Video( "/playQueues/1", "/library/metadata/12", "12", "Title", "com.plexapp.agents.imdb://tt0000001?lang=en", 5000,
+				"/file", "http://file" );
+		video.setCurrentTime( 1000 );
+
+		String xml = new String( writer.getTemplate( video, "playing" ).toByteArray( "7", "192.168.1.5", 3005 ), "UTF-8" );
+		assertEquals( expected( "7", TimelineWriter.generateEmptyTimeline( "music" ), TimelineWriter.generateTimeline( video, "playing",
+				"pch-00", "192.168.1.5", "3005" ) ), xml );
+
+		// Nothing changed, so the same template is used again
+		assertTrue( writer.getTemplate( video, "playing" ) == writer.getTemplate( video, "playing" ) );
+
+		video.setCurrentTime( 2000 );
+		xml = writer.getTemplate( video, "paused" ).toString( "8", "192.168.1.6", 3006 );
+		assertEquals( expected( "8", TimelineWriter.generateEmptyTimeline( "music" ), TimelineWriter.generateTimeline( video, "paused",
+				"pch-00", "192.168.1.6", "3006" ) ), xml );
+	}
+
+	@Test
+	public void testEscaping() throws Exception {
+		TimelineWriter writer = new TimelineWriter( "pch-00", server );
+		Track track = new Track( "/playQueues/1?a=1&b=2", "/library/metadata/\"3\"", "3", "<Title>", "/file", 3000 );
+
+		String xml = new String( writer.getTemplate( track, "paused" ).toByteArray( "1&2", "10.0.0.2", 3005 ), "UTF-8" );
+		assertEquals( expected( "1&2", TimelineWriter.generateTimeline( track, "paused", "pch-00", "10.0.0.1", "32400" ),
+				TimelineWriter.generateEmptyTimeline( "video" ) ), xml );
+	}
+
+	@Test
+	public void testPoll() throws Exception {
+		TimelineWriter writer = new TimelineWriter( "pch-00", server );
+		assertEquals( expected( "", TimelineWriter.generateEmptyTimeline( "music" ), TimelineWriter.generateEmptyTimeline( "video" ) ), writer
+				.getPollTemplate( null, null ).toString( null, "", 0 ) );
+
+		Track track = new Track( "/playQueues/1", "/library/metadata/3", "3", "Title", "/file", 3000 );
+		track.setState( "playing" );
+		assertEquals( expected( "4", TimelineWriter.generateTimeline( track, "playing", "pch-00", "10.0.0.1", "32400" ), TimelineWriter
+				.generateEmptyTimeline( "video" ) ), writer.getPollTemplate( track, null ).toString( "4", "", 0 ) );
+	}
+}